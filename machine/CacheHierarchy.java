@@ -0,0 +1,270 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+/**
+ * A model of the caches between the processor and main memory: split L1
+ * instruction and data caches, backed by an optional unified L2 cache. The
+ * model holds only tags, so it changes timing and statistics, never data.
+ *
+ * <p>
+ * The model is turned on by setting <tt>Processor.cache</tt> to
+ * <tt>true</tt>. Each cache is configured by keys named after it
+ * (<tt>l1i</tt>, <tt>l1d</tt> or <tt>l2</tt>):
+ *
+ * <ul>
+ * <li><tt>Cache.l1dSize</tt>: the capacity in bytes. An L2 size of 0 means
+ * there is no L2 cache.
+ * <li><tt>Cache.l1dAssociativity</tt>: the number of ways in each set.
+ * <li><tt>Cache.l1dLineSize</tt>: the line size in bytes.
+ * <li><tt>Cache.l1dReplacement</tt>: <tt>lru</tt>, or <tt>plru</tt> for
+ * tree pseudo-LRU, which needs a power-of-two associativity.
+ * </ul>
+ *
+ * <p>
+ * All caches are physically indexed, write-back and write-allocate. An L1
+ * miss that hits in L2 costs <tt>Cache.l2Ticks</tt> extra simulated ticks,
+ * and a miss in the last level costs <tt>Cache.memoryTicks</tt> more. Both
+ * default to 0, so that turning the model on does not change timing unless
+ * asked. Write-backs are assumed to be buffered, and cost nothing.
+ *
+ * <p>
+ * Every cache keeps its tags, replacement state and dirty bits in flat
+ * arrays indexed by <tt>set * associativity + way</tt>.
+ */
+final class CacheHierarchy {
+    /**
+     * Build the configured caches.
+     *
+     * @param	stats	the statistics to count accesses and misses in.
+     */
+    CacheHierarchy(Stats stats) {
+	this.stats = stats;
+
+	l1i = configure("l1i", 8192, 2, 32);
+	l1d = configure("l1d", 8192, 2, 32);
+	l2 = configure("l2", 65536, 8, 64);
+
+	l2Ticks = Config.getInteger("Cache.l2Ticks", 0);
+	memoryTicks = Config.getInteger("Cache.memoryTicks", 0);
+	Lib.assertTrue(l2Ticks >= 0 && memoryTicks >= 0);
+    }
+
+    private static Cache configure(String name, int size, int associativity,
+				   int lineSize) {
+	size = Config.getInteger("Cache." + name + "Size", size);
+	if (size == 0 && name.equals("l2"))
+	    return null;
+
+	associativity =
+	    Config.getInteger("Cache." + name + "Associativity", associativity);
+	lineSize = Config.getInteger("Cache." + name + "LineSize", lineSize);
+	String replacement =
+	    Config.getString("Cache." + name + "Replacement", "lru");
+	Lib.assertTrue(replacement.equals("lru") ||
+		       replacement.equals("plru"),
+		       "unknown replacement policy: " + replacement);
+
+	return new Cache(size, associativity, lineSize,
+			 replacement.equals("plru"));
+    }
+
+    /**
+     * Simulate an instruction fetch.
+     *
+     * @param	paddr	the physical address fetched.
+     * @return	the number of extra ticks the fetch takes.
+     */
+    int fetch(long paddr) {
+	stats.numL1IAccesses++;
+	if (l1i.access(paddr, false))
+	    return 0;
+
+	stats.numL1IMisses++;
+	return miss(l1i, paddr);
+    }
+
+    /**
+     * Simulate a data read or write.
+     *
+     * @param	paddr	the physical address accessed.
+     * @param	write	<tt>true</tt> if the access is a store.
+     * @return	the number of extra ticks the access takes.
+     */
+    int data(long paddr, boolean write) {
+	stats.numL1DAccesses++;
+	if (l1d.access(paddr, write))
+	    return 0;
+
+	stats.numL1DMisses++;
+	return miss(l1d, paddr);
+    }
+
+    /**
+     * Write back the line <i>l1</i> evicted, if it was dirty, and fill the
+     * line that missed.
+     */
+    private int miss(Cache l1, long paddr) {
+	if (l2 == null) {
+	    if (l1.evicted != -1)
+		stats.numCacheWritebacks++;
+	    return memoryTicks;
+	}
+
+	if (l1.evicted != -1)
+	    level2(l1.evicted, true);
+
+	return l2Ticks + level2(paddr, false);
+    }
+
+    private int level2(long paddr, boolean write) {
+	stats.numL2Accesses++;
+	if (l2.access(paddr, write))
+	    return 0;
+
+	stats.numL2Misses++;
+	if (l2.evicted != -1)
+	    stats.numCacheWritebacks++;
+
+	// a write-back from L1 is not waited for
+	return write ? 0 : memoryTicks;
+    }
+
+    /**
+     * One cache. Holds tags only.
+     */
+    private static class Cache {
+	Cache(int size, int associativity, int lineSize, boolean plru) {
+	    Lib.assertTrue(size > 0 && associativity > 0 && lineSize >= 4);
+	    Lib.assertTrue(isPowerOf2(lineSize),
+			   "cache line size must be a power of 2");
+	    Lib.assertTrue(size % (associativity * lineSize) == 0);
+
+	    numSets = size / (associativity * lineSize);
+	    Lib.assertTrue(isPowerOf2(numSets),
+			   "number of cache sets must be a power of 2");
+	    Lib.assertTrue(!plru || (isPowerOf2(associativity) &&
+				     associativity <= 32),
+			   "pseudo-LRU needs a power-of-2 associativity");
+
+	    this.associativity = associativity;
+	    this.plru = plru;
+	    lineShift = Integer.numberOfTrailingZeros(lineSize);
+
+	    tags = new long[numSets * associativity];
+	    java.util.Arrays.fill(tags, -1);
+	    dirty = new boolean[tags.length];
+
+	    if (plru)
+		treeBits = new int[numSets];
+	    else
+		lastUse = new long[tags.length];
+	}
+
+	/**
+	 * Look up the line holding <i>paddr</i>, and bring it in if it is
+	 * missing. On a miss, <tt>evicted</tt> is set to an address in the
+	 * line that was replaced, if that line was dirty, or to -1.
+	 *
+	 * @return	<tt>true</tt> on a hit.
+	 */
+	boolean access(long paddr, boolean write) {
+	    long line = paddr >>> lineShift;
+	    int base = (int) (line & (numSets-1)) * associativity;
+
+	    for (int i=base; i<base+associativity; i++) {
+		if (tags[i] == line) {
+		    touch(base, i);
+		    if (write)
+			dirty[i] = true;
+		    return true;
+		}
+	    }
+
+	    int victim = victim(base);
+	    evicted = (tags[victim] != -1 && dirty[victim]) ?
+		tags[victim] << lineShift : -1;
+
+	    tags[victim] = line;
+	    dirty[victim] = write;
+	    touch(base, victim);
+	    return false;
+	}
+
+	/**
+	 * Record a use of way <i>i</i> in the set starting at <i>base</i>.
+	 */
+	private void touch(int base, int i) {
+	    if (!plru) {
+		lastUse[i] = ++clock;
+		return;
+	    }
+
+	    // point every node on the path away from this way
+	    int set = base / associativity, way = i - base;
+	    int bits = treeBits[set];
+	    int node = 1;
+	    for (int half=associativity/2; half>0; half/=2) {
+		boolean right = (way & half) != 0;
+		if (right)
+		    bits &= ~(1 << node);
+		else
+		    bits |= (1 << node);
+		node = node*2 + (right ? 1 : 0);
+	    }
+	    treeBits[set] = bits;
+	}
+
+	/**
+	 * Choose the way to replace in the set starting at <i>base</i>: an
+	 * empty way if there is one, else the least recently used.
+	 */
+	private int victim(int base) {
+	    for (int i=base; i<base+associativity; i++) {
+		if (tags[i] == -1)
+		    return i;
+	    }
+
+	    if (!plru) {
+		int oldest = base;
+		for (int i=base+1; i<base+associativity; i++) {
+		    if (lastUse[i] < lastUse[oldest])
+			oldest = i;
+		}
+		return oldest;
+	    }
+
+	    // follow the tree bits
+	    int bits = treeBits[base / associativity];
+	    int node = 1, way = 0;
+	    for (int half=associativity/2; half>0; half/=2) {
+		boolean right = (bits & (1 << node)) != 0;
+		if (right)
+		    way += half;
+		node = node*2 + (right ? 1 : 0);
+	    }
+	    return base + way;
+	}
+
+	long evicted = -1;
+
+	private int numSets, associativity, lineShift;
+	private boolean plru;
+
+	private long[] tags;
+	private boolean[] dirty;
+	private long[] lastUse;
+	private int[] treeBits;
+	private long clock = 0;
+    }
+
+    private static boolean isPowerOf2(int n) {
+	return n > 0 && (n & (n-1)) == 0;
+    }
+
+    private Stats stats;
+    private Cache l1i, l1d, l2;
+    private int l2Ticks, memoryTicks;
+}
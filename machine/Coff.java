@@ -90,6 +90,10 @@ public class Coff {
 		}
 	    }
 	}
+
+	Processor processor = Machine.processor();
+	if (processor != null && processor.getProfiler() != null)
+	    processor.getProfiler().addImage(this, file.getName());
     }
 
     /**
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -137,6 +136,15 @@ public class CoffSection {
 	return readOnly;
     }
 
+    /**
+     * Test whether this section contains code.
+     *
+     * @return	<tt>true</tt> if this section contains instructions.
+     */
+    public boolean isExecutable() {
+	return executable;
+    }
+
     /**
      * Test whether this section is initialized. Loading a page from an
      * initialized section requires a disk access, while loading a page from an
@@ -180,8 +188,8 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
-	int paddr = ppn*pageSize;
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+	long paddr = (long) ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
 
@@ -196,10 +204,12 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	// the rest of the page is zero-filled
+	byte[] page = new byte[pageSize];
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	memory.write(paddr, page, 0, pageSize);
     }
 
     /** The COFF object to which this section belongs. */
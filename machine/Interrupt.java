@@ -7,6 +7,11 @@ import nachos.security.*;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.SortedSet;
+import java.util.ArrayList;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -201,6 +206,63 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * Write the type and time of each pending interrupt to a snapshot.
+     *
+     * @param	out	the stream to write to.
+     */
+    void saveState(DataOutput out) throws IOException {
+	out.writeInt(pending.size());
+	for (PendingInterrupt toOccur : pending) {
+	    out.writeUTF(toOccur.type);
+	    out.writeLong(toOccur.time);
+	}
+    }
+
+    /**
+     * Move pending interrupts to the times saved in a snapshot. The handlers
+     * cannot be saved, so each saved interrupt is matched with the earliest
+     * unmatched pending interrupt of the same type. Pending interrupts with
+     * no match keep their distance from the current time, which has moved
+     * by <i>shift</i>; saved interrupts with no match are dropped.
+     *
+     * @param	in	the stream to read from.
+     * @param	shift	how far the snapshot moved the current time.
+     */
+    void restoreState(DataInput in, long shift) throws IOException {
+	ArrayList<PendingInterrupt> live =
+	    new ArrayList<PendingInterrupt>(pending);
+	pending.clear();
+
+	int numSaved = in.readInt();
+	for (int i=0; i<numSaved; i++) {
+	    String type = in.readUTF();
+	    long time = in.readLong();
+
+	    PendingInterrupt match = null;
+	    for (PendingInterrupt toOccur : live) {
+		if (toOccur.type.equals(type)) {
+		    match = toOccur;
+		    break;
+		}
+	    }
+
+	    if (match == null) {
+		Lib.debug(dbgInt, "Dropping the saved " + type + " interrupt");
+		continue;
+	    }
+
+	    live.remove(match);
+	    match.time = time;
+	    pending.add(match);
+	}
+
+	for (PendingInterrupt toOccur : live) {
+	    toOccur.time += shift;
+	    pending.add(toOccur);
+	}
+    }
+
     private class PendingInterrupt implements Comparable {
 	PendingInterrupt(long time, String type, Runnable handler) {
 	    this.time = time;
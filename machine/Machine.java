@@ -97,9 +97,22 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	for (Runnable reporter : statsReporters)
+	    reporter.run();
 	terminate();
     }
 
+    /**
+     * Register a handler that prints additional statistics when the machine
+     * halts. Reporters run in registration order, after <tt>Stats.print()</tt>.
+     *
+     * @param	reporter	the handler to run at halt time.
+     */
+    public static void addStatsReporter(Runnable reporter) {
+	Lib.assertTrue(reporter != null);
+	statsReporters.add(reporter);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -147,6 +160,20 @@ public final class Machine {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    shellProgramName = args[i++];		    
 		}		    
+		else if (arg.equals("-snapshot")) {
+		    Lib.assertTrue(i+1 < args.length, "switch without argument");
+		    try {
+			snapshotTicks = Long.parseLong(args[i++]);
+		    }
+		    catch (NumberFormatException e) {
+			Lib.assertNotReached("bad value for -snapshot switch");
+		    }
+		    snapshotFileName = args[i++];
+		}
+		else if (arg.equals("-restore")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    restoreFileName = args[i++];
+		}
 		else if (arg.equals("-z")) {
 		    System.out.print(copyright);
 		    System.exit(1);
@@ -379,6 +406,15 @@ public final class Machine {
 
     private static String shellProgramName = null;
 
+    /**
+     * Return the directory that holds the user programs.
+     *
+     * @return	the test directory.
+     */
+    static File getTestDirectory() {
+	return testDirectory;
+    }
+
     /**
      * Return the name of the process class that the kernel should use. In
      * the multi-programming project, returns
@@ -409,6 +445,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static java.util.ArrayList<Runnable> statsReporters =
+	new java.util.ArrayList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
@@ -416,6 +454,13 @@ public final class Machine {
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
 
+    /** The file <tt>-snapshot</tt> writes to, or <tt>null</tt>. */
+    static String snapshotFileName = null;
+    /** The simulated time at which <tt>-snapshot</tt> is taken. */
+    static long snapshotTicks = 0;
+    /** The file <tt>-restore</tt> reads from, or <tt>null</tt>. */
+    static String restoreFileName = null;
+
     private static final String help =
 	"\n" +
 	"Options:\n" +
@@ -438,6 +483,15 @@ public final class Machine {
 	"\t\tinstead of the value of the configuration variable\n" +
 	"\t\tKernel.shellProgram\n" +
 	"\n" +
+	"\t-snapshot <ticks> <file>\n" +
+	"\t\tWrite a snapshot of the machine to a file at the first user\n" +
+	"\t\tinstruction after the given simulated time.\n" +
+	"\n" +
+	"\t-restore <file>\n" +
+	"\t\tResume from a snapshot when the first user program starts.\n" +
+	"\t\tThe kernel, program and configuration must be the ones the\n" +
+	"\t\tsnapshot was taken with.\n" +
+	"\n" +
 	"\t-z\n" +
 	"\t\tprint the copyright message\n" +
 	"\n" +
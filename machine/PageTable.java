@@ -0,0 +1,230 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A page table packed into <tt>int</tt>s, one word per virtual page, which
+ * the processor reads directly. Each word holds a physical page number and
+ * four flag bits:
+ *
+ * <pre>
+ *	bit 31		valid
+ *	bit 30		read-only
+ *	bit 29		used
+ *	bit 28		dirty
+ *	bits 27-0	physical page number
+ * </pre>
+ *
+ * <p>
+ * Compared to an array of <tt>TranslationEntry</tt> objects, a table takes
+ * 4 bytes a page instead of an object and a reference, and a lookup touches
+ * one word. Kernels that prefer objects can convert single entries with
+ * <tt>getEntry()</tt> and <tt>setEntry()</tt>.
+ *
+ * <p>
+ * The table has two levels. A directory points to second-level tables of
+ * <tt>levelSize</tt> entries each, which are only allocated when an entry in
+ * their range is first set to something other than 0; every entry of a
+ * missing table reads as 0, which is invalid. An address space with a few
+ * regions far apart, such as code at the bottom and a stack at the top,
+ * costs the directory plus one second-level table per region. The last
+ * second-level table is cut short at <tt>getNumPages()</tt>, so a small
+ * address space costs no more than a flat array. Second-level tables are
+ * never freed.
+ *
+ * @see	nachos.machine.Processor#setPageTable(PageTable)
+ */
+public final class PageTable {
+    /**
+     * Allocate a new page table with every entry invalid.
+     *
+     * @param	numPages	the number of virtual pages in the address
+     *				space.
+     */
+    public PageTable(int numPages) {
+	Lib.assertTrue(numPages >= 0 && numPages <= Processor.maxPages);
+
+	this.numPages = numPages;
+	directory = new int[(numPages+levelSize-1) >>> levelShift][];
+    }
+
+    /**
+     * Return the number of virtual pages this table maps.
+     *
+     * @return	the size of the address space, in pages.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the number of second-level tables allocated so far.
+     *
+     * @return	the number of second-level tables.
+     */
+    public int getNumLevels() {
+	return numLevels;
+    }
+
+    /**
+     * Return the packed entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry, made of a physical page number and flag bits.
+     */
+    public int get(int vpn) {
+	Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
+	int[] level = directory[vpn >>> levelShift];
+	return (level == null) ? 0 : level[vpn & levelMask];
+    }
+
+    /**
+     * Replace the packed entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the new entry.
+     */
+    public void set(int vpn, int entry) {
+	Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
+	int[] level = directory[vpn >>> levelShift];
+	if (level == null) {
+	    if (entry == 0)
+		return;
+
+	    level = allocateLevel(vpn >>> levelShift);
+	}
+	level[vpn & levelMask] = entry;
+    }
+
+    /**
+     * Allocate the second-level table at the specified directory index.
+     */
+    int[] allocateLevel(int index) {
+	int first = index << levelShift;
+	int[] level = new int[Math.min(levelSize, numPages - first)];
+
+	directory[index] = level;
+	numLevels++;
+	return level;
+    }
+
+    /**
+     * Test whether the entry for a virtual page is valid.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the entry's valid bit is set.
+     */
+    public boolean isValid(int vpn) {
+	return (get(vpn) & validBit) != 0;
+    }
+
+    /**
+     * Return the physical page number in the entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number.
+     */
+    public int getPPN(int vpn) {
+	return get(vpn) & ppnMask;
+    }
+
+    /**
+     * Set flag bits in the entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	flags	the bits to set.
+     */
+    public void setFlags(int vpn, int flags) {
+	Lib.assertTrue((flags & ppnMask) == 0);
+
+	set(vpn, get(vpn) | flags);
+    }
+
+    /**
+     * Clear flag bits in the entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	flags	the bits to clear.
+     */
+    public void clearFlags(int vpn, int flags) {
+	Lib.assertTrue((flags & ppnMask) == 0);
+
+	set(vpn, get(vpn) & ~flags);
+    }
+
+    /**
+     * Return a copy of the entry for a virtual page, as a
+     * <tt>TranslationEntry</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	a new translation entry.
+     */
+    public TranslationEntry getEntry(int vpn) {
+	int entry = get(vpn);
+
+	return new TranslationEntry(vpn, entry & ppnMask,
+				    (entry & validBit) != 0,
+				    (entry & readOnlyBit) != 0,
+				    (entry & usedBit) != 0,
+				    (entry & dirtyBit) != 0);
+    }
+
+    /**
+     * Replace the entry for the virtual page <tt>entry.vpn</tt> with the
+     * contents of a <tt>TranslationEntry</tt>. Its <tt>asid</tt> and
+     * <tt>global</tt> fields are ignored.
+     *
+     * @param	entry	the translation to store.
+     */
+    public void setEntry(TranslationEntry entry) {
+	set(entry.vpn,
+	    makeEntry(entry.ppn,
+		      (entry.valid ? validBit : 0) |
+		      (entry.readOnly ? readOnlyBit : 0) |
+		      (entry.used ? usedBit : 0) |
+		      (entry.dirty ? dirtyBit : 0)));
+    }
+
+    /**
+     * Build a packed entry.
+     *
+     * @param	ppn	the physical page number.
+     * @param	flags	the flag bits.
+     * @return	the entry.
+     */
+    public static int makeEntry(int ppn, int flags) {
+	Lib.assertTrue(ppn >= 0 && ppn <= ppnMask);
+	Lib.assertTrue((flags & ppnMask) == 0);
+
+	return ppn | flags;
+    }
+
+    /** Set if the entry maps a physical page. */
+    public static final int validBit = 0x80000000;
+    /** Set if user programs may not write the page. */
+    public static final int readOnlyBit = 0x40000000;
+    /** Set by the processor every time the page is read or written. */
+    public static final int usedBit = 0x20000000;
+    /** Set by the processor every time the page is written. */
+    public static final int dirtyBit = 0x10000000;
+    /** The bits holding the physical page number. */
+    public static final int ppnMask = 0x0FFFFFFF;
+
+    /** Base 2 logarithm of <tt>levelSize</tt>. */
+    static final int levelShift = 10;
+    /** The number of entries in a second-level table. */
+    public static final int levelSize = 1 << levelShift;
+    /** Selects the index into a second-level table from a page number. */
+    static final int levelMask = levelSize - 1;
+
+    private int numPages;
+    private int numLevels = 0;
+
+    /**
+     * The second-level tables, indexed by the high bits of the virtual page
+     * number, or <tt>null</tt> where none is allocated yet.
+     */
+    int[][] directory;
+}
@@ -0,0 +1,28 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A page table that the processor can search by itself when the TLB misses.
+ * A kernel that registers one with <tt>Processor.setPageWalker()</tt> no
+ * longer sees <tt>exceptionTLBMiss</tt>; it only sees
+ * <tt>exceptionPageFault</tt> for pages that are not resident.
+ */
+public interface PageWalker {
+    /**
+     * Return the translation for the specified virtual page of the current
+     * address space. Called by the processor in the middle of an instruction,
+     * so this method must not block, switch threads, or touch the processor's
+     * registers.
+     *
+     * <p>
+     * The processor installs a copy of the returned entry in the TLB, so the
+     * used and dirty bits it sets must be read back with
+     * <tt>readTLBEntry()</tt>, exactly as with a software-refilled TLB.
+     *
+     * @param	vpn	the virtual page that missed in the TLB.
+     * @return	the translation for <i>vpn</i>, or <tt>null</tt> or an
+     *		invalid entry if the page is not resident.
+     */
+    public TranslationEntry walk(int vpn);
+}
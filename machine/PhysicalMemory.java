@@ -0,0 +1,302 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. Physical addresses are
+ * <tt>long</tt>s, so memory can be larger than a Java array. Words and
+ * halfwords are little-endian.
+ *
+ * <p>
+ * The backend is selected by the <tt>Processor.memory</tt> key:
+ *
+ * <ul>
+ * <li><tt>heap</tt> (the default): a <tt>byte[]</tt> on the Java heap,
+ * which <tt>Processor.getMemory()</tt> returns. Limited to 2GB.
+ * <li><tt>direct</tt>: direct byte buffers outside the Java heap, which the
+ * garbage collector never scans or copies.
+ * <li><tt>mapped</tt>: the file named by <tt>Processor.memoryFile</tt>,
+ * mapped into the host's address space, so that the host's virtual memory
+ * system pages simulated RAM in and out.
+ * </ul>
+ *
+ * <p>
+ * Only the heap backend has an array; kernels that should work with any
+ * backend copy data with <tt>read()</tt> and <tt>write()</tt>.
+ */
+public abstract class PhysicalMemory {
+    /**
+     * Allocate physical memory of the configured kind.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	numPhysPages	the number of pages of physical memory.
+     * @return	the new physical memory.
+     */
+    static PhysicalMemory create(Privilege privilege, int numPhysPages) {
+	long size = (long) numPhysPages * Processor.pageSize;
+	String kind = Config.getString("Processor.memory", "heap");
+
+	if (kind.equals("heap"))
+	    return new Heap(size);
+	else if (kind.equals("direct"))
+	    return new Direct(size, null, privilege);
+	else if (kind.equals("mapped"))
+	    return new Direct(size, Config.getString("Processor.memoryFile"),
+			      privilege);
+
+	Lib.assertNotReached("unknown Processor.memory: " + kind);
+	return null;
+    }
+
+    /**
+     * Return the size of this memory.
+     *
+     * @return	the number of bytes of physical memory.
+     */
+    public abstract long getSize();
+
+    /**
+     * Return the array backing this memory, if there is one.
+     *
+     * @return	the array, or <tt>null</tt> if this memory is not on the Java
+     *		heap.
+     */
+    public byte[] array() {
+	return null;
+    }
+
+    /**
+     * Read a byte.
+     *
+     * @param	paddr	the physical address.
+     * @return	the byte at <i>paddr</i>.
+     */
+    public abstract byte readByte(long paddr);
+
+    /**
+     * Read a halfword. <i>paddr</i> must be a multiple of 2.
+     *
+     * @param	paddr	the physical address.
+     * @return	the halfword at <i>paddr</i>.
+     */
+    public abstract short readShort(long paddr);
+
+    /**
+     * Read a word. <i>paddr</i> must be a multiple of 4.
+     *
+     * @param	paddr	the physical address.
+     * @return	the word at <i>paddr</i>.
+     */
+    public abstract int readInt(long paddr);
+
+    /**
+     * Write a byte.
+     *
+     * @param	paddr	the physical address.
+     * @param	value	the byte to store.
+     */
+    public abstract void writeByte(long paddr, byte value);
+
+    /**
+     * Write a halfword. <i>paddr</i> must be a multiple of 2.
+     *
+     * @param	paddr	the physical address.
+     * @param	value	the halfword to store.
+     */
+    public abstract void writeShort(long paddr, short value);
+
+    /**
+     * Write a word. <i>paddr</i> must be a multiple of 4.
+     *
+     * @param	paddr	the physical address.
+     * @param	value	the word to store.
+     */
+    public abstract void writeInt(long paddr, int value);
+
+    /**
+     * Copy bytes out of physical memory.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte of <i>data</i> to write.
+     * @param	length	the number of bytes to copy.
+     */
+    public abstract void read(long paddr, byte[] data, int offset,
+			      int length);
+
+    /**
+     * Copy bytes into physical memory.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte of <i>data</i> to read.
+     * @param	length	the number of bytes to copy.
+     */
+    public abstract void write(long paddr, byte[] data, int offset,
+			       int length);
+
+    /**
+     * Memory in a single <tt>byte[]</tt>, accessed a word at a time through a
+     * little-endian buffer view of the same array.
+     */
+    private static class Heap extends PhysicalMemory {
+	Heap(long size) {
+	    Lib.assertTrue(size <= Integer.MAX_VALUE,
+			   "heap memory is limited to 2GB");
+
+	    memory = new byte[(int) size];
+	    words = ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public long getSize()		{ return memory.length; }
+	public byte[] array()		{ return memory; }
+
+	public byte readByte(long paddr)	{ return memory[(int) paddr]; }
+	public short readShort(long paddr) {
+	    return words.getShort((int) paddr);
+	}
+	public int readInt(long paddr)	{ return words.getInt((int) paddr); }
+
+	public void writeByte(long paddr, byte value) {
+	    memory[(int) paddr] = value;
+	}
+	public void writeShort(long paddr, short value) {
+	    words.putShort((int) paddr, value);
+	}
+	public void writeInt(long paddr, int value) {
+	    words.putInt((int) paddr, value);
+	}
+
+	public void read(long paddr, byte[] data, int offset, int length) {
+	    System.arraycopy(memory, (int) paddr, data, offset, length);
+	}
+	public void write(long paddr, byte[] data, int offset, int length) {
+	    System.arraycopy(data, offset, memory, (int) paddr, length);
+	}
+
+	private byte[] memory;
+	private ByteBuffer words;
+    }
+
+    /**
+     * Memory in direct or mapped byte buffers, split into chunks of
+     * <tt>chunkSize</tt> bytes because a buffer is indexed by an
+     * <tt>int</tt>. No aligned access crosses a chunk boundary.
+     */
+    private static class Direct extends PhysicalMemory {
+	Direct(final long size, final String fileName, Privilege privilege) {
+	    this.size = size;
+	    chunks = new ByteBuffer[(int) ((size + chunkSize - 1) / chunkSize)];
+
+	    if (fileName == null) {
+		for (int i=0; i<chunks.length; i++)
+		    chunks[i] = ByteBuffer.allocateDirect(chunkLength(i));
+	    }
+	    else {
+		try {
+		    privilege.doPrivileged(new PrivilegedExceptionAction() {
+			    public Object run() throws IOException {
+				mapFile(fileName);
+				return null;
+			    }
+			});
+		}
+		catch (Exception e) {
+		    Lib.assertNotReached("could not map " + fileName + ": " + e);
+		}
+	    }
+
+	    for (int i=0; i<chunks.length; i++)
+		chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void mapFile(String fileName) throws IOException {
+	    RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+	    try {
+		file.setLength(size);
+		FileChannel channel = file.getChannel();
+		for (int i=0; i<chunks.length; i++)
+		    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+					    (long) i * chunkSize,
+					    chunkLength(i));
+	    }
+	    finally {
+		// the mappings stay valid after the file is closed
+		file.close();
+	    }
+	}
+
+	private int chunkLength(int i) {
+	    return (int) Math.min(chunkSize, size - (long) i * chunkSize);
+	}
+
+	public long getSize()		{ return size; }
+
+	public byte readByte(long paddr) {
+	    return chunks[(int) (paddr >>> chunkShift)].get(offset(paddr));
+	}
+	public short readShort(long paddr) {
+	    return chunks[(int) (paddr >>> chunkShift)].getShort(offset(paddr));
+	}
+	public int readInt(long paddr) {
+	    return chunks[(int) (paddr >>> chunkShift)].getInt(offset(paddr));
+	}
+
+	public void writeByte(long paddr, byte value) {
+	    chunks[(int) (paddr >>> chunkShift)].put(offset(paddr), value);
+	}
+	public void writeShort(long paddr, short value) {
+	    chunks[(int) (paddr >>> chunkShift)].putShort(offset(paddr), value);
+	}
+	public void writeInt(long paddr, int value) {
+	    chunks[(int) (paddr >>> chunkShift)].putInt(offset(paddr), value);
+	}
+
+	public void read(long paddr, byte[] data, int offset, int length) {
+	    while (length > 0) {
+		ByteBuffer chunk =
+		    chunks[(int) (paddr >>> chunkShift)].duplicate();
+		chunk.position(offset(paddr));
+		int amount = Math.min(length, chunk.remaining());
+		chunk.get(data, offset, amount);
+
+		paddr += amount;
+		offset += amount;
+		length -= amount;
+	    }
+	}
+	public void write(long paddr, byte[] data, int offset, int length) {
+	    while (length > 0) {
+		ByteBuffer chunk =
+		    chunks[(int) (paddr >>> chunkShift)].duplicate();
+		chunk.position(offset(paddr));
+		int amount = Math.min(length, chunk.remaining());
+		chunk.put(data, offset, amount);
+
+		paddr += amount;
+		offset += amount;
+		length -= amount;
+	    }
+	}
+
+	private static int offset(long paddr) {
+	    return (int) paddr & (chunkSize-1);
+	}
+
+	private long size;
+	private ByteBuffer[] chunks;
+
+	private static final int chunkShift = 30;
+	private static final int chunkSize = 1 << chunkShift;
+    }
+}
@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +49,42 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	memory = PhysicalMemory.create(privilege, numPhysPages);
+
+	if (Config.getBoolean("Processor.profile", false))
+	    profiler = new Profiler(privilege);
+
+	if (Config.getBoolean("Processor.cache", false))
+	    caches = new CacheHierarchy(privilege.stats);
+
+	int predecodeSize = 1;
+	while (predecodeSize < maxPredecoded &&
+	       predecodeSize*4L < memory.getSize())
+	    predecodeSize *= 2;
+	predecoded = new Decoded[predecodeSize];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbAssociativity =
+		Config.getInteger("Processor.tlbAssociativity", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0);
+	    tlbSets = tlbSize / tlbAssociativity;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    tlbNextVictim = new int[tlbSets];
+
+	    int hashSize = 1;
+	    while (hashSize < tlbSize*2)
+		hashSize *= 2;
+	    tlbHashBits = Integer.numberOfTrailingZeros(hashSize);
+	    tlbHashVPN = new int[hashSize];
+	    tlbHashASID = new int[hashSize];
+	    tlbHashIndex = new int[hashSize];
+	    indexTLB();
 	}
 	else {
 	    translations = null;
@@ -89,20 +123,255 @@ public final class Processor {
 
 	registers[regNextPC] = registers[regPC] + 4;
 
+	invalidateTranslationCache();
+
 	Machine.autoGrader().runProcessor(privilege);
 
+	// only consult the autograder on exceptions if it might object
+	try {
+	    graderSeesExceptions =
+		Machine.autoGrader().getClass()
+		.getMethod("exceptionHandler", Privilege.class)
+		.getDeclaringClass() != nachos.ag.AutoGrader.class;
+	}
+	catch (NoSuchMethodException e) {
+	    graderSeesExceptions = true;
+	}
+
+	if (Machine.restoreFileName != null && !snapshotRestored) {
+	    snapshotRestored = true;
+	    Snapshot.restore(privilege, this, Machine.restoreFileName);
+	}
+
+	if (Machine.snapshotFileName != null && !snapshotScheduled) {
+	    snapshotScheduled = true;
+	    privilege.interrupt.schedule(
+		Math.max(1, Machine.snapshotTicks - privilege.stats.totalTicks),
+		"snapshot", new Runnable() {
+			public void run() { snapshotDue = true; }
+		    });
+	}
+
 	Instruction inst = new Instruction();
+
+	// the disassembler and the profiler need every instruction to go
+	// through decode()
+	boolean predecode = !(Lib.test(dbgProcessor) ||
+			      Lib.test(dbgDisassemble) ||
+			      Lib.test(dbgFullDisassemble) ||
+			      profiler != null);
 	
 	while (true) {
 	    try {
-		inst.run();
+		if (predecode)
+		    inst.runPredecoded();
+		else if (profiler == null)
+		    inst.run();
+		else
+		    inst.runProfiled();
 	    }
 	    catch (MipsException e) {
 		e.handle();
 	    }
 
 	    privilege.interrupt.tick(false);
+
+	    // the interrupt may go off in the kernel, so wait until the
+	    // processor is between two user instructions
+	    if (snapshotDue) {
+		snapshotDue = false;
+		Snapshot.save(privilege, this, Machine.snapshotFileName);
+	    }
+	}
+    }
+
+    /**
+     * Write the registers and the page table or TLB to a snapshot.
+     *
+     * @param	out	the stream to write to.
+     */
+    void saveState(DataOutput out) throws IOException {
+	finishLoad();
+
+	for (int i=0; i<numUserRegisters; i++)
+	    out.writeInt(registers[i]);
+
+	out.writeBoolean(usingTLB);
+	out.writeInt(currentASID);
+
+	if (pageTable != null) {
+	    // only the second-level tables that exist, ended by -1
+	    int[][] directory = pageTable.directory;
+	    out.writeInt(-2);
+	    out.writeInt(pageTable.getNumPages());
+	    for (int i=0; i<directory.length; i++) {
+		if (directory[i] == null)
+		    continue;
+
+		out.writeInt(i);
+		for (int j=0; j<directory[i].length; j++)
+		    out.writeInt(directory[i][j]);
+	    }
+	    out.writeInt(-1);
+	    return;
 	}
+
+	if (translations == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+
+	out.writeInt(translations.length);
+	for (int i=0; i<translations.length; i++) {
+	    TranslationEntry entry = translations[i];
+	    out.writeInt(entry.vpn);
+	    out.writeInt(entry.ppn);
+	    out.writeBoolean(entry.valid);
+	    out.writeBoolean(entry.readOnly);
+	    out.writeBoolean(entry.used);
+	    out.writeBoolean(entry.dirty);
+	    out.writeInt(entry.asid);
+	    out.writeBoolean(entry.global);
+	}
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSets; i++)
+		out.writeInt(tlbNextVictim[i]);
+	}
+    }
+
+    /**
+     * Replace the registers and the page table or TLB with those saved in a
+     * snapshot. A page table is restored into the entries of the page table
+     * the kernel has installed, which must be the same size.
+     *
+     * @param	in	the stream to read from.
+     */
+    void restoreState(DataInput in) throws IOException {
+	finishLoad();
+
+	for (int i=0; i<numUserRegisters; i++)
+	    registers[i] = in.readInt();
+
+	Lib.assertTrue(in.readBoolean() == usingTLB,
+		       "snapshot uses a different translation mechanism");
+	currentASID = in.readInt();
+
+	int numEntries = in.readInt();
+	if (numEntries == -2) {
+	    Lib.assertTrue(pageTable != null &&
+			   pageTable.getNumPages() == in.readInt(),
+			   "snapshot has a different page table size");
+
+	    int[][] directory = pageTable.directory;
+	    for (int i=0; i<directory.length; i++) {
+		if (directory[i] != null)
+		    java.util.Arrays.fill(directory[i], 0);
+	    }
+
+	    for (int i=in.readInt(); i!=-1; i=in.readInt()) {
+		int[] level = directory[i];
+		if (level == null)
+		    level = pageTable.allocateLevel(i);
+		for (int j=0; j<level.length; j++)
+		    level[j] = in.readInt();
+	    }
+
+	    invalidateTranslationCache();
+	    return;
+	}
+	if (numEntries == -1) {
+	    Lib.assertTrue(translations == null && pageTable == null);
+	    return;
+	}
+
+	Lib.assertTrue(translations != null &&
+		       translations.length == numEntries,
+		       "snapshot has a different page table size");
+
+	for (int i=0; i<numEntries; i++) {
+	    TranslationEntry entry = translations[i];
+	    entry.vpn = in.readInt();
+	    entry.ppn = in.readInt();
+	    entry.valid = in.readBoolean();
+	    entry.readOnly = in.readBoolean();
+	    entry.used = in.readBoolean();
+	    entry.dirty = in.readBoolean();
+	    entry.asid = in.readInt();
+	    entry.global = in.readBoolean();
+	}
+
+	if (usingTLB) {
+	    for (int i=0; i<tlbSets; i++)
+		tlbNextVictim[i] = in.readInt();
+	    indexTLB();
+	}
+
+	invalidateTranslationCache();
+    }
+
+    /**
+     * Test whether this processor models caches, which it does if
+     * <tt>Processor.cache</tt> is set.
+     *
+     * @return	<tt>true</tt> if the cache counters are being kept.
+     */
+    public boolean hasCaches() {
+	return caches != null;
+    }
+
+    /**
+     * Read the cache counters, which count up from when the machine
+     * started. A kernel can charge cache behavior to a process by reading
+     * them when the process gets the processor and again when it gives the
+     * processor up.
+     *
+     * @return	a new array holding the L1-I accesses and misses, the L1-D
+     *		accesses and misses, and the L2 accesses and misses, in that
+     *		order.
+     */
+    public long[] readCacheCounters() {
+	Lib.assertTrue(caches != null);
+
+	Stats stats = privilege.stats;
+	return new long[] {
+	    stats.numL1IAccesses, stats.numL1IMisses,
+	    stats.numL1DAccesses, stats.numL1DMisses,
+	    stats.numL2Accesses, stats.numL2Misses
+	};
+    }
+
+    /**
+     * Test whether this processor is profiling, which it does if
+     * <tt>Processor.profile</tt> is set. The profiler learns about programs
+     * as <tt>Coff</tt> objects read them from executables.
+     *
+     * @return	<tt>true</tt> if user programs are being profiled.
+     */
+    public boolean isProfiling() {
+	return profiler != null;
+    }
+
+    /**
+     * Return the profiler, if <tt>Processor.profile</tt> is set.
+     *
+     * @return	the profiler, or <tt>null</tt> if profiling is off.
+     */
+    Profiler getProfiler() {
+	return profiler;
+    }
+
+    /**
+     * Return the trap frame describing the exception being handled. The
+     * frame is filled in just before the exception handler is called, and
+     * saves the handler from reading each register it needs through
+     * <tt>readRegister()</tt>. It is overwritten by the next exception, so
+     * the handler must copy out what it needs before it can block.
+     *
+     * @return	the processor's trap frame.
+     */
+    public TrapFrame getTrapFrame() {
+	return trapFrame;
     }
 
     /**
@@ -156,7 +425,8 @@ public final class Processor {
     /**
      * Get the current page table, set by the last call to setPageTable().
      *
-     * @return	the current page table.
+     * @return	the current page table, or <tt>null</tt> if the current page
+     *		table is a compact <tt>PageTable</tt>.
      */
     public TranslationEntry[] getPageTable() {
 	Lib.assertTrue(!usingTLB);
@@ -175,6 +445,36 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	this.pageTable = null;
+	invalidateTranslationCache();
+    }
+
+    /**
+     * Get the current compact page table, set by the last call to
+     * <tt>setPageTable(PageTable)</tt>.
+     *
+     * @return	the current page table, or <tt>null</tt> if the current page
+     *		table is an array of <tt>TranslationEntry</tt> objects.
+     */
+    public PageTable getCompactPageTable() {
+	Lib.assertTrue(!usingTLB);
+
+	return pageTable;
+    }
+
+    /**
+     * Set the page table pointer to a compact page table. All further
+     * address translations will read and update its packed entries in place.
+     * The size of the current address space is the table's number of pages.
+     *
+     * @param	pageTable	the page table to use.
+     */
+    public void setPageTable(PageTable pageTable) {
+	Lib.assertTrue(!usingTLB);
+
+	this.translations = null;
+	this.pageTable = pageTable;
+	invalidateTranslationCache();
     }
 
     /**
@@ -188,6 +488,131 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of ways in each set of this processor's TLB. This is
+     * the same as <tt>getTLBSize()</tt> for a fully associative TLB, and 1
+     * for a direct-mapped TLB.
+     *
+     * <p>
+     * An instruction may need two pages at once, one for itself and one for
+     * its data. With a direct-mapped TLB, a program whose instruction and
+     * data pages fall in the same set can never make progress, so kernels
+     * experimenting with one should use enough sets to avoid this.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the current address space identifier.
+     *
+     * @return	the ASID set by the last call to <tt>setCurrentASID()</tt>.
+     */
+    public int getCurrentASID() {
+	Lib.assertTrue(usingTLB);
+
+	return currentASID;
+    }
+
+    /**
+     * Set the current address space identifier. From now on, a TLB entry
+     * only matches if its <tt>asid</tt> field equals <i>asid</i> or its
+     * <tt>global</tt> bit is set. A kernel that gives each process its own
+     * ASID and sets it in <tt>restoreState()</tt> can leave other processes'
+     * entries in the TLB across context switches instead of invalidating
+     * them. The initial ASID is 0, which is also the default for new
+     * <tt>TranslationEntry</tt> objects.
+     *
+     * @param	asid	the new ASID. Must not be negative.
+     */
+    public void setCurrentASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0);
+
+	if (asid != currentASID) {
+	    currentASID = asid;
+	    invalidateTranslationCache();
+	}
+    }
+
+    /**
+     * Select how TLB misses are handled. By default, or if <i>walker</i> is
+     * <tt>null</tt>, every miss raises <tt>exceptionTLBMiss</tt> and the
+     * kernel refills the TLB itself. Otherwise the processor asks
+     * <i>walker</i> for the missing translation and writes it to the entry
+     * suggested by <tt>getTLBVictim()</tt>, tagged with the current ASID
+     * unless it is global; the kernel is only interrupted, with
+     * <tt>exceptionPageFault</tt>, if the walker has no valid translation.
+     * Either way the miss is counted in <tt>Stats.numTLBMisses</tt>;
+     * hardware refills are also counted in <tt>Stats.numTLBRefills</tt>.
+     *
+     * @param	walker	the page table to refill the TLB from, or
+     *			<tt>null</tt> for software refill.
+     */
+    public void setPageWalker(PageWalker walker) {
+	Lib.assertTrue(usingTLB);
+
+	pageWalker = walker;
+    }
+
+    /**
+     * Return the page walker set by the last call to
+     * <tt>setPageWalker()</tt>.
+     *
+     * @return	the current page walker, or <tt>null</tt> if TLB misses are
+     *		handled by the kernel.
+     */
+    public PageWalker getPageWalker() {
+	return pageWalker;
+    }
+
+    /**
+     * Return the TLB set in which a virtual page must be placed. Set
+     * <i>s</i> consists of TLB entries <tt>s*getTLBAssociativity()</tt>
+     * through <tt>(s+1)*getTLBAssociativity() - 1</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the set that may hold <i>vpn</i>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return (int) (((long) vpn & 0xFFFFFFFFL) % tlbSets);
+    }
+
+    /**
+     * Suggest which TLB entry to replace in order to map the specified
+     * virtual page. The suggestion is an entry already mapping <i>vpn</i> in
+     * the current address space if there is one, otherwise an invalid entry
+     * in the page's set, otherwise the entry of the set that was filled
+     * least recently. Kernels are free to ignore the hint and pick any entry
+     * in the right set.
+     *
+     * @param	vpn	the virtual page about to be mapped.
+     * @return	the index of the suggested TLB entry.
+     */
+    public int getTLBVictim(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	int set = getTLBSet(vpn);
+	int first = set * tlbAssociativity;
+
+	int number = lookupTLB(vpn);
+	if (number >= 0)
+	    return number;
+
+	for (int i=first; i<first+tlbAssociativity; i++) {
+	    if (!translations[i].valid)
+		return i;
+	}
+
+	return first + tlbNextVictim[set];
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,7 +630,9 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
+     * A valid entry must be placed in the set selected by its virtual page
+     * number (see <tt>getTLBSet()</tt>). With the default fully associative
+     * TLB there is only one set, so the location of an entry within the TLB
      * does not affect anything.
      *
      * @param	number	the index into the TLB.
@@ -215,7 +642,141 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	int set = number / tlbAssociativity;
+	Lib.assertTrue(!entry.valid || getTLBSet(entry.vpn) == set);
+
+	TranslationEntry old = translations[number];
 	translations[number] = new TranslationEntry(entry);
+
+	if (number == set*tlbAssociativity + tlbNextVictim[set])
+	    tlbNextVictim[set] = (tlbNextVictim[set] + 1) % tlbAssociativity;
+
+	unindexTLB(number, old);
+	indexTLB(number);
+	invalidateTranslationCache();
+    }
+
+    /**
+     * Rebuild the hash table used to find TLB entries by address space and
+     * virtual page number. Global entries are filed under ASID -1. When
+     * several valid entries have the same key, the one with the lowest index
+     * is kept. Called when the whole TLB is replaced; a single write only
+     * updates the slots of the entry it changes.
+     */
+    private void indexTLB() {
+	java.util.Arrays.fill(tlbHashVPN, -1);
+
+	for (int i=0; i<tlbSize; i++)
+	    indexTLB(i);
+    }
+
+    /**
+     * Add a TLB entry to the hash table, unless it is invalid or an entry
+     * with the same key and a lower index is already there.
+     */
+    private void indexTLB(int number) {
+	TranslationEntry entry = translations[number];
+	if (!entry.valid || entry.vpn < 0)
+	    return;
+
+	int asid = entry.global ? -1 : entry.asid;
+
+	int h = findTLBSlot(entry.vpn, asid);
+	if (tlbHashVPN[h] == -1) {
+	    tlbHashVPN[h] = entry.vpn;
+	    tlbHashASID[h] = asid;
+	    tlbHashIndex[h] = number;
+	}
+	else if (tlbHashIndex[h] > number) {
+	    tlbHashIndex[h] = number;
+	}
+    }
+
+    /**
+     * Remove the key of the old contents of a TLB entry from the hash table,
+     * if that entry was the one filed under it. Another valid entry with the
+     * same key can only be in the same set, so the set is searched for one
+     * to file instead.
+     */
+    private void unindexTLB(int number, TranslationEntry old) {
+	if (!old.valid || old.vpn < 0)
+	    return;
+
+	int asid = old.global ? -1 : old.asid;
+
+	int h = findTLBSlot(old.vpn, asid);
+	if (tlbHashVPN[h] == -1 || tlbHashIndex[h] != number)
+	    return;
+
+	int first = getTLBSet(old.vpn) * tlbAssociativity;
+	for (int i=first; i<first+tlbAssociativity; i++) {
+	    TranslationEntry entry = translations[i];
+	    if (i != number && entry.valid && entry.vpn == old.vpn &&
+		(entry.global ? -1 : entry.asid) == asid) {
+		tlbHashIndex[h] = i;
+		return;
+	    }
+	}
+
+	// delete the slot, moving later entries of its probe run back so
+	// that lookups still reach them
+	int mask = tlbHashVPN.length-1;
+	tlbHashVPN[h] = -1;
+	for (int j=(h+1) & mask; tlbHashVPN[j] != -1; j=(j+1) & mask) {
+	    int home = hashTLBKey(tlbHashVPN[j], tlbHashASID[j]);
+	    if (((j - home) & mask) < ((j - h) & mask))
+		continue;
+
+	    tlbHashVPN[h] = tlbHashVPN[j];
+	    tlbHashASID[h] = tlbHashASID[j];
+	    tlbHashIndex[h] = tlbHashIndex[j];
+	    tlbHashVPN[j] = -1;
+	    h = j;
+	}
+    }
+
+    /**
+     * Return the hash table slot holding a key, or the empty slot where it
+     * would go.
+     */
+    private int findTLBSlot(int vpn, int asid) {
+	int h = hashTLBKey(vpn, asid);
+	while (tlbHashVPN[h] != -1 &&
+	       (tlbHashVPN[h] != vpn || tlbHashASID[h] != asid))
+	    h = (h+1) & (tlbHashVPN.length-1);
+	return h;
+    }
+
+    /**
+     * Find the valid TLB entry mapping the specified virtual page in the
+     * current address space. If both a global entry and one tagged with the
+     * current ASID match, the one with the lower index is used, as it was
+     * when the TLB was searched in order.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the index of the entry, or -1 if the page is not mapped.
+     */
+    private int lookupTLB(int vpn) {
+	int number = lookupTLB(vpn, currentASID);
+	int global = lookupTLB(vpn, -1);
+
+	if (number < 0 || (global >= 0 && global < number))
+	    return global;
+	return number;
+    }
+
+    private int lookupTLB(int vpn, int asid) {
+	for (int h=hashTLBKey(vpn, asid); ; h=(h+1) & (tlbHashVPN.length-1)) {
+	    int key = tlbHashVPN[h];
+	    if (key == vpn && tlbHashASID[h] == asid)
+		return tlbHashIndex[h];
+	    if (key == -1)
+		return -1;
+	}
+    }
+
+    private int hashTLBKey(int vpn, int asid) {
+	return ((vpn ^ (asid * 0x85EBCA6B)) * 0x9E3779B1) >>> (32 - tlbHashBits);
     }
 
     /**
@@ -235,9 +796,23 @@ public final class Processor {
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	byte[] mainMemory = memory.array();
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is not on the heap; use getPhysicalMemory()");
+
 	return mainMemory;
     }
 
+    /**
+     * Return the physical memory attached to this processor. Unlike
+     * <tt>getMemory()</tt>, this works with every memory backend.
+     *
+     * @return	the physical memory.
+     */
+    public PhysicalMemory getPhysicalMemory() {
+	return memory;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -279,6 +854,18 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Forget the cached translations kept by <tt>translate()</tt>. Called
+     * whenever the translations they were copied from may have been replaced.
+     */
+    private void invalidateTranslationCache() {
+	for (int i=0; i<numAccessTypes; i++) {
+	    cachedVPN[i] = -1;
+	    cachedEntry[i] = null;
+	    cachedLevel[i] = null;
+	}
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,80 +873,233 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * The last successful translation of each access type is remembered, so
+     * that consecutive references to the same page skip the lookup. In TLB
+     * mode the remembered entry is the TLB's own, which only
+     * <tt>writeTLBEntry()</tt> can change. With a page table, the kernel may
+     * modify or replace entries at any time, so a remembered entry is only
+     * used while it is still in the table, still valid, and still maps the
+     * same physical page. For a compact page table, the second-level table
+     * is remembered too, which is safe because those are never freed.
+     * Either way a hit behaves exactly like a lookup that succeeds, and does
+     * not affect the simulated statistics.
+     *
+     * <p>
+     * If the cache model is on, the access is then run through it.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
-     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	access	the kind of memory reference (one of the
+     *			<tt>access<i>*</i></tt> constants).
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private long translate(int vaddr, int size, int access)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
-			       + (writing ? ", write" : ", read..."));
+	long paddr = translateAddress(vaddr, size, access);
+
+	if (caches != null) {
+	    int penalty = (access == accessFetch) ? caches.fetch(paddr) :
+		caches.data(paddr, access == accessWrite);
+	    if (penalty > 0) {
+		privilege.stats.userTicks += penalty;
+		privilege.stats.totalTicks += penalty;
+	    }
+	}
+
+	return paddr;
+    }
+
+    private long translateAddress(int vaddr, int size, int access)
+	throws MipsException {
+	boolean writing = (access == accessWrite);
+	boolean debug = Lib.test(dbgProcessor);
 
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
+	    if (debug)
+		System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+				   + (writing ? ", write" : ", read..."));
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    throw trap(exceptionAddressError, vaddr);
 	}
 
-	// calculate virtual page number and offset from the virtual address
-	int vpn = pageFromAddress(vaddr);
+	// calculate virtual page number from the virtual address
+	int vpn = vaddr >>> pageShift;
+
+	// same page as the last access of this kind?
+	if (vpn == cachedVPN[access] && !debug) {
+	    if (usingTLB)
+		return cachedBase[access] | (vaddr & (pageSize-1));
+
+	    if (pageTable != null) {
+		int[] level = cachedLevel[access];
+		int index = vpn & PageTable.levelMask;
+		int bits = level[index];
+		if ((bits & (PageTable.validBit | PageTable.ppnMask)) ==
+		    (PageTable.validBit | cachedPPN[access]) &&
+		    !(writing && (bits & PageTable.readOnlyBit) != 0)) {
+		    level[index] = bits | PageTable.usedBit |
+			(writing ? PageTable.dirtyBit : 0);
+		    return cachedBase[access] | (vaddr & (pageSize-1));
+		}
+	    }
+	    else {
+		TranslationEntry entry = cachedEntry[access];
+		if (translations[vpn] == entry && entry.valid &&
+		    entry.ppn == cachedPPN[access] &&
+		    !(writing && entry.readOnly)) {
+		    entry.used = true;
+		    if (writing)
+			entry.dirty = true;
+		    return cachedBase[access] | (vaddr & (pageSize-1));
+		}
+	    }
+	}
+
+	if (debug)
+	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
+			       + (writing ? ", write" : ", read..."));
+
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	int ppn;
 
-	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
-	    if (translations == null || vpn >= translations.length ||
-		translations[vpn] == null ||
-		!translations[vpn].valid) {
-		privilege.stats.numPageFaults++;
-		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
-	    }
-
-	    entry = translations[vpn];
+	// a compact page table is read in place
+	if (!usingTLB && pageTable != null) {
+	    ppn = lookupPageTable(vpn, vaddr, access);
 	}
-	// else, look through all TLB entries for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
+	    // if not using a TLB, then the vpn is an index into the table
+	    if (!usingTLB) {
+		if (translations == null || vpn >= translations.length ||
+		    translations[vpn] == null ||
+		    !translations[vpn].valid) {
+		    privilege.stats.numPageFaults++;
+		    Lib.debug(dbgProcessor, "\t\tpage fault");
+		    throw trap(exceptionPageFault, vaddr);
+		}
+
+		entry = translations[vpn];
+	    }
+	    // else, look up the TLB entry for the vpn
+	    else {
+		int number = lookupTLB(vpn);
+		if (number < 0) {
+		    privilege.stats.numTLBMisses++;
+		    Lib.debug(dbgProcessor, "\t\tTLB miss");
+		    if (pageWalker == null)
+			throw trap(exceptionTLBMiss, vaddr);
+
+		    number = refillTLB(vpn, vaddr);
 		}
+		entry = translations[number];
 	    }
-	    if (entry == null) {
-		privilege.stats.numTLBMisses++;
-		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+
+	    // check if trying to write a read-only page
+	    if (entry.readOnly && writing) {
+		Lib.debug(dbgProcessor, "\t\tread-only exception");
+		throw trap(exceptionReadOnly, vaddr);
+	    }
+
+	    // check if physical page number is out of range
+	    ppn = entry.ppn;
+	    if (ppn < 0 || ppn >= numPhysPages) {
+		Lib.debug(dbgProcessor, "\t\tbad ppn");
+		throw trap(exceptionBusError, vaddr);
 	    }
+
+	    // set used and dirty bits as appropriate
+	    entry.used = true;
+	    if (writing)
+		entry.dirty = true;
+	}
+
+	// remember this translation for the next access of the same kind
+	cachedVPN[access] = vpn;
+	cachedEntry[access] = entry;
+	cachedPPN[access] = ppn;
+	cachedBase[access] = (long) ppn*pageSize;
+
+	long paddr = ((long) ppn*pageSize) + offset;
+
+	if (debug)
+	    System.out.println("\t\tpaddr=0x" + Long.toHexString(paddr));	
+	return paddr;
+    }
+
+    /**
+     * Look up a virtual page in the compact page table, by walking from its
+     * directory to a second-level table. The entry is checked exactly like a
+     * <tt>TranslationEntry</tt>, and its used and dirty bits are set in
+     * place. A page whose second-level table is missing is not valid.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	vaddr	the virtual address being translated.
+     * @param	access	the kind of memory reference.
+     * @return	the physical page number.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int lookupPageTable(int vpn, int vaddr, int access)
+	throws MipsException {
+	boolean writing = (access == accessWrite);
+
+	int[] level = (vpn < pageTable.getNumPages()) ?
+	    pageTable.directory[vpn >>> PageTable.levelShift] : null;
+	int index = vpn & PageTable.levelMask;
+	if (level == null || (level[index] & PageTable.validBit) == 0) {
+	    privilege.stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    throw trap(exceptionPageFault, vaddr);
 	}
 
-	// check if trying to write a read-only page
-	if (entry.readOnly && writing) {
+	int bits = level[index];
+	if (writing && (bits & PageTable.readOnlyBit) != 0) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    throw trap(exceptionReadOnly, vaddr);
 	}
 
-	// check if physical page number is out of range
-	int ppn = entry.ppn;
-	if (ppn < 0 || ppn >= numPhysPages) {
+	int ppn = bits & PageTable.ppnMask;
+	if (ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    throw trap(exceptionBusError, vaddr);
 	}
 
-	// set used and dirty bits as appropriate
-	entry.used = true;
-	if (writing)
-	    entry.dirty = true;
+	level[index] = bits | PageTable.usedBit |
+	    (writing ? PageTable.dirtyBit : 0);
+	cachedLevel[access] = level;
+	return ppn;
+    }
+
+    /**
+     * Refill the TLB from the page walker after a miss.
+     *
+     * @param	vpn	the virtual page that missed.
+     * @param	vaddr	the virtual address being translated.
+     * @return	the index of the new TLB entry.
+     * @exception	MipsException	if the page is not resident.
+     */
+    private int refillTLB(int vpn, int vaddr) throws MipsException {
+	TranslationEntry walked = pageWalker.walk(vpn);
+	if (walked == null || !walked.valid) {
+	    privilege.stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    throw trap(exceptionPageFault, vaddr);
+	}
+	Lib.assertTrue(walked.vpn == vpn);
 
-	int paddr = (ppn*pageSize) + offset;
+	TranslationEntry entry = new TranslationEntry(walked);
+	if (!entry.global)
+	    entry.asid = currentASID;
 
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	int number = getTLBVictim(vpn);
+	writeTLBEntry(number, entry);
+
+	privilege.stats.numTLBRefills++;
+	Lib.debug(dbgProcessor, "\t\trefilled TLB entry " + number);
+	return number;
     }
 
     /**
@@ -372,14 +1112,28 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
+	return readMem(vaddr, size, accessRead);
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>
+     * for the specified kind of access, and return the result.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @param	access	<tt>accessFetch</tt> or <tt>accessRead</tt>.
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMem(int vaddr, int size, int access)
+	throws MipsException {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = readPhysical(translate(vaddr, size, access), size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -406,8 +1160,49 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	writePhysical(translate(vaddr, size, accessWrite), size, value);
+    }
+
+    /**
+     * Read an aligned value from physical memory. Words and halfwords are
+     * read with a single access rather than assembled a byte at a time.
+     * Like <tt>Lib.bytesToInt()</tt>, bytes and halfwords are sign-extended.
+     *
+     * @param	paddr	the physical address, a multiple of <i>size</i>.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @return	the value read.
+     */
+    private int readPhysical(long paddr, int size) {
+	switch (size) {
+	case 4:
+	    return memory.readInt(paddr);
+	case 2:
+	    return memory.readShort(paddr);
+	default:
+	    return memory.readByte(paddr);
+	}
+    }
+
+    /**
+     * Write an aligned value to physical memory.
+     *
+     * @param	paddr	the physical address, a multiple of <i>size</i>.
+     * @param	size	the number of bytes to write (1, 2, or 4).
+     * @param	value	the value to store; only the low <i>size</i> bytes
+     *			are used.
+     */
+    private void writePhysical(long paddr, int size, int value) {
+	switch (size) {
+	case 4:
+	    memory.writeInt(paddr, value);
+	    break;
+	case 2:
+	    memory.writeShort(paddr, (short) value);
+	    break;
+	default:
+	    memory.writeByte(paddr, (byte) value);
+	    break;
+	}
     }
 
     /**
@@ -541,23 +1336,96 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of entries in each TLB set. */
+    private int tlbAssociativity;
+    /** Number of TLB sets. */
+    private int tlbSets;
+    /** The way of each set that <tt>getTLBVictim()</tt> suggests next. */
+    private int[] tlbNextVictim;
+    /**
+     * Open-addressed hash table from (ASID, virtual page number) to TLB
+     * index, over the valid TLB entries. Empty slots hold -1.
+     */
+    private int[] tlbHashVPN, tlbHashASID, tlbHashIndex;
+    /** Base 2 logarithm of the size of the TLB hash table. */
+    private int tlbHashBits;
+    /** The address space whose TLB entries currently match. */
+    private int currentASID = 0;
+    /** Refills the TLB on a miss, or <tt>null</tt> for software refill. */
+    private PageWalker pageWalker = null;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /** The compact page table, used instead of <tt>translations</tt>. */
+    private PageTable pageTable = null;
+
+    /** An instruction fetch, for <tt>translate()</tt>. */
+    private static final int accessFetch = 0;
+    /** A data read, for <tt>translate()</tt>. */
+    private static final int accessRead = 1;
+    /** A data write, for <tt>translate()</tt>. */
+    private static final int accessWrite = 2;
+    private static final int numAccessTypes = 3;
+
+    /**
+     * The virtual page of the last successful translation of each access
+     * type, or -1 if there is none. Host-side only; never seen by the kernel.
+     */
+    private int[] cachedVPN = { -1, -1, -1 };
+    /** The entry that produced each cached translation. */
+    private TranslationEntry[] cachedEntry =
+	new TranslationEntry[numAccessTypes];
+    /** The second-level page table holding each cached translation. */
+    private int[][] cachedLevel = new int[numAccessTypes][];
+    /** The physical page each cached translation resolved to. */
+    private int[] cachedPPN = new int[numAccessTypes];
+    /** The physical address of the start of each cached page. */
+    private long[] cachedBase = new long[numAccessTypes];
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Base 2 logarithm of <tt>pageSize</tt>. */
+    private static final int pageShift = 10;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private PhysicalMemory memory;
+    /**
+     * The last instruction decoded at each word of main memory. With more
+     * than <tt>maxPredecoded</tt> words of memory, words share entries.
+     */
+    private Decoded[] predecoded;
+    private static final int maxPredecoded = 1 << 20;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
+    /** The profiler, or <tt>null</tt> if profiling is off. */
+    private Profiler profiler = null;
+    /** The cache model, or <tt>null</tt> if it is off. */
+    private CacheHierarchy caches = null;
+    /** The exception object thrown by every trap. */
+    private MipsException pendingTrap = new MipsException();
+    /** The exception state passed to the kernel. */
+    private TrapFrame trapFrame = new TrapFrame();
+    /**
+     * <tt>false</tt> if the autograder's <tt>exceptionHandler()</tt> is the
+     * default one, which lets every exception through.
+     */
+    private boolean graderSeesExceptions = true;
+
+    /** <tt>true</tt> once the snapshot named by <tt>-restore</tt> is loaded. */
+    private boolean snapshotRestored = false;
+    /** <tt>true</tt> once the interrupt for <tt>-snapshot</tt> is set. */
+    private boolean snapshotScheduled = false;
+    /**
+     * Set by that interrupt; the snapshot is written at the next boundary
+     * between user instructions.
+     */
+    private boolean snapshotDue = false;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
@@ -569,18 +1437,49 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Prepare the processor's exception object to signal the specified
+     * exception, which does not involve a memory address.
+     *
+     * @param	cause	the exception that occurred.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause) {
+	return pendingTrap.set(cause, false, 0);
+    }
+
+    /**
+     * Prepare the processor's exception object to signal the specified
+     * exception, caused by an access to <i>badVAddr</i>.
+     *
+     * @param	cause		the exception that occurred.
+     * @param	badVAddr	the virtual address that caused it.
+     * @return	the exception to throw.
+     */
+    private MipsException trap(int cause, int badVAddr) {
+	return pendingTrap.set(cause, true, badVAddr);
+    }
+
+    /**
+     * Unwinds an instruction that raised an exception. A single instance is
+     * reused for every exception; this is safe because <tt>handle()</tt> has
+     * copied everything it needs into the registers and the trap frame before
+     * the kernel handler runs and can let another user thread trap. No stack
+     * trace is ever filled in.
+     */
     private class MipsException extends Exception {
-	public MipsException(int cause) {
+	public MipsException set(int cause, boolean hasBadVAddr,
+				int badVAddr) {
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
+	    this.hasBadVAddr = hasBadVAddr;
+	    this.badVAddr = badVAddr;
+	    return this;
 	}
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
-
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
+	public Throwable fillInStackTrace() {
+	    return this;
 	}
 
 	public void handle() {
@@ -594,10 +1493,19 @@ public final class Processor {
 
 	    finishLoad();
 
+	    trapFrame.cause = cause;
+	    trapFrame.badVAddr = registers[regBadVAddr];
+	    trapFrame.v0 = registers[regV0];
+	    trapFrame.a0 = registers[regA0];
+	    trapFrame.a1 = registers[regA1];
+	    trapFrame.a2 = registers[regA2];
+	    trapFrame.a3 = registers[regA3];
+
 	    Lib.assertTrue(exceptionHandler != null);
 
 	    // autograder might not want kernel to know about this exception
-	    if (!Machine.autoGrader().exceptionHandler(privilege))
+	    if (graderSeesExceptions &&
+		!Machine.autoGrader().exceptionHandler(privilege))
 		return;
 	    
 	    exceptionHandler.run();
@@ -616,6 +1524,347 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute the instruction at the PC, like <tt>run()</tt>, and report
+	 * it to the profiler. A syscall retires when it traps; any other
+	 * exception means the instruction will run again.
+	 */
+	public void runProfiled() throws MipsException {
+	    int pc = registers[regPC];
+	    int misses = privilege.stats.numTLBMisses;
+
+	    profiler.enter(usingTLB ? null : pageTable != null ?
+			   (Object) pageTable : (Object) translations,
+			   currentASID);
+	    try {
+		run();
+	    }
+	    catch (MipsException e) {
+		if (e.cause == exceptionSyscall)
+		    retire(pc);
+		throw e;
+	    }
+	    finally {
+		if (privilege.stats.numTLBMisses != misses)
+		    profiler.miss(pc, privilege.stats.numTLBMisses - misses);
+	    }
+
+	    retire(pc);
+	}
+
+	private void retire(int pc) {
+	    int access;
+	    switch (operation) {
+	    case Mips.LOAD:
+	    case Mips.LWL:
+	    case Mips.LWR:
+		access = Profiler.accessLoad;
+		break;
+	    case Mips.STORE:
+	    case Mips.SWL:
+	    case Mips.SWR:
+		access = Profiler.accessStore;
+		break;
+	    default:
+		access = Profiler.accessNone;
+		break;
+	    }
+
+	    profiler.retire(pc, test(Mips.BRANCH), access, addr);
+	}
+
+	/**
+	 * Execute the instruction at the PC, like <tt>run()</tt> without
+	 * debugging output, using the predecode cache. If the instruction
+	 * starts a superinstruction, also execute the instruction after it.
+	 */
+	public void runPredecoded() throws MipsException {
+	    int pc = registers[regPC];
+	    Decoded d = fetchDecoded(pc);
+
+	    if (d.fused == null || registers[regNextPC] != pc+4) {
+		execute(d);
+		return;
+	    }
+
+	    // first half: never traps, never branches
+	    execute(d);
+
+	    // the second half is a separate instruction, and takes its own
+	    // tick; the caller ticks after it
+	    privilege.interrupt.tick(false);
+
+	    pc = registers[regPC];
+	    long paddr = translate(pc, 4, accessFetch);
+	    int word = memory.readInt(paddr);
+	    Decoded next = d.fused;
+	    if (next.word != word)
+		next = lookupDecoded(paddr, word);
+
+	    execute(next);
+	}
+
+	/**
+	 * Fetch the instruction at <i>pc</i> and return its predecoded form.
+	 */
+	private Decoded fetchDecoded(int pc) throws MipsException {
+	    long paddr = translate(pc, 4, accessFetch);
+	    return lookupDecoded(paddr, memory.readInt(paddr));
+	}
+
+	/**
+	 * Return the predecoded form of <i>word</i>, found at physical address
+	 * <i>paddr</i>. The cache is checked against the word actually in
+	 * memory, so kernels may modify memory in any way.
+	 */
+	private Decoded lookupDecoded(long paddr, int word) {
+	    int index = (int) (paddr >>> 2) & (predecoded.length-1);
+	    Decoded d = predecoded[index];
+	    if (d != null && d.word == word)
+		return d;
+
+	    d = new Decoded(word);
+	    predecoded[index] = d;
+
+	    // look for a superinstruction with the next word in the same page
+	    if (d.fusesWithNext() && (paddr & (pageSize-1)) != pageSize-4) {
+		int nextWord = memory.readInt(paddr+4);
+		Decoded next = predecoded[(index+1) & (predecoded.length-1)];
+		if (next == null || next.word != nextWord)
+		    next = new Decoded(nextWord);
+		if (d.fusesWith(next))
+		    d.fused = next;
+	    }
+
+	    return d;
+	}
+
+	/**
+	 * Execute a predecoded instruction. The result is identical to
+	 * <tt>decode()</tt>, <tt>execute()</tt> and <tt>writeBack()</tt>:
+	 * source registers are read before the pending delayed load
+	 * completes, and nothing changes if the instruction traps.
+	 */
+	private void execute(Decoded d) throws MipsException {
+	    int result, a, b;
+	    int nextPC = registers[regNextPC]+4;
+
+	    switch (d.handler) {
+	    case Decoded.NOP:
+		finishLoad();
+		break;
+
+	    case Decoded.ADDIU:
+		result = registers[d.rs] + d.imm;
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = result;
+		break;
+	    case Decoded.SLTI:
+		result = (registers[d.rs] < d.imm) ? 1 : 0;
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = result;
+		break;
+	    case Decoded.SLTIU:
+		result = (((long) registers[d.rs] & 0xFFFFFFFFL) < d.imm) ? 1 : 0;
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = result;
+		break;
+	    case Decoded.ANDI:
+		result = registers[d.rs] & d.imm;
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = result;
+		break;
+	    case Decoded.ORI:
+		result = registers[d.rs] | d.imm;
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = result;
+		break;
+	    case Decoded.XORI:
+		result = registers[d.rs] ^ d.imm;
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = result;
+		break;
+	    case Decoded.LUI:
+		finishLoad();
+		if (d.rt != 0)
+		    registers[d.rt] = d.imm << 16;
+		break;
+
+	    case Decoded.SLL:
+		result = registers[d.rt] << d.sh;
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.SRL:
+		// shifts the sign-extended 64-bit value, as execute() does
+		result = (int) (((long) registers[d.rt]) >>> d.sh);
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.SRA:
+		result = registers[d.rt] >> d.sh;
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.ADDU:
+		result = registers[d.rs] + registers[d.rt];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.SUBU:
+		result = registers[d.rs] - registers[d.rt];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.AND:
+		result = registers[d.rs] & registers[d.rt];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.OR:
+		result = registers[d.rs] | registers[d.rt];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.XOR:
+		result = registers[d.rs] ^ registers[d.rt];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.SLT:
+		result = (registers[d.rs] < registers[d.rt]) ? 1 : 0;
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.SLTU:
+		result = (registers[d.rs]+Integer.MIN_VALUE <
+			  registers[d.rt]+Integer.MIN_VALUE) ? 1 : 0;
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.MFLO:
+		result = registers[regLo];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.MFHI:
+		result = registers[regHi];
+		finishLoad();
+		if (d.rd != 0)
+		    registers[d.rd] = result;
+		break;
+	    case Decoded.MULT:
+	    case Decoded.MULTU: {
+		long product;
+		if (d.handler == Decoded.MULT)
+		    product = (long) registers[d.rs] * (long) registers[d.rt];
+		else
+		    product = ((long) registers[d.rs] & 0xFFFFFFFFL) *
+			((long) registers[d.rt] & 0xFFFFFFFFL);
+		registers[regLo] = (int) product;
+		registers[regHi] = (int) (product >>> 32);
+		finishLoad();
+		break;
+	    }
+
+	    case Decoded.LOAD:
+		a = registers[d.rs] + d.imm;
+		result = readPhysical(translate(a, d.size, accessRead), d.size);
+		if (!d.unsigned)
+		    result = Lib.extend(result, 0, d.size*8);
+		delayedLoad(d.rt, result, 0xFFFFFFFF);
+		break;
+	    case Decoded.STORE:
+		a = registers[d.rs] + d.imm;
+		writePhysical(translate(a, d.size, accessWrite), d.size,
+			      registers[d.rt]);
+		finishLoad();
+		break;
+
+	    case Decoded.BEQ:
+		a = registers[d.rs];
+		b = registers[d.rt];
+		finishLoad();
+		if (a == b)
+		    nextPC = registers[regNextPC] + (d.imm<<2);
+		break;
+	    case Decoded.BNE:
+		a = registers[d.rs];
+		b = registers[d.rt];
+		finishLoad();
+		if (a != b)
+		    nextPC = registers[regNextPC] + (d.imm<<2);
+		break;
+	    case Decoded.BLEZ:
+		a = registers[d.rs];
+		finishLoad();
+		if (a <= 0)
+		    nextPC = registers[regNextPC] + (d.imm<<2);
+		break;
+	    case Decoded.BGTZ:
+		a = registers[d.rs];
+		finishLoad();
+		if (a > 0)
+		    nextPC = registers[regNextPC] + (d.imm<<2);
+		break;
+	    case Decoded.BLTZ:
+		a = registers[d.rs];
+		finishLoad();
+		if (a < 0)
+		    nextPC = registers[regNextPC] + (d.imm<<2);
+		break;
+	    case Decoded.BGEZ:
+		a = registers[d.rs];
+		finishLoad();
+		if (a >= 0)
+		    nextPC = registers[regNextPC] + (d.imm<<2);
+		break;
+	    case Decoded.J:
+		finishLoad();
+		nextPC = (registers[regNextPC]&0xF0000000) | (d.target<<2);
+		break;
+	    case Decoded.JAL:
+		finishLoad();
+		registers[regRA] = nextPC;
+		nextPC = (registers[regNextPC]&0xF0000000) | (d.target<<2);
+		break;
+	    case Decoded.JR:
+		a = registers[d.rs];
+		finishLoad();
+		nextPC = a;
+		break;
+
+	    case Decoded.SYSCALL:
+		throw trap(exceptionSyscall);
+
+	    default:
+		value = d.word;
+		decode();
+		execute();
+		writeBack();
+		return;
+	    }
+
+	    advancePC(nextPC);
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,7 +1875,7 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    value = readMem(registers[regPC], 4, accessFetch);
 	}
 	
 	private void decode() {
@@ -869,7 +2118,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    throw trap(exceptionOverflow);
 		}
 		break;
 
@@ -939,7 +2188,7 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		throw trap(exceptionSyscall);
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
@@ -1009,7 +2258,7 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		throw trap(exceptionIllegalInstruction);
 
 	    default:
 		Lib.assertNotReached();
@@ -1019,7 +2268,7 @@ public final class Processor {
 	private void writeBack() throws MipsException {
 	    // if instruction is signed, but carry bit !+ sign bit, throw
 	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+		throw trap(exceptionOverflow);
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1063,6 +2312,163 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * An instruction word decoded once into the form executed by
+     * <tt>Instruction.runPredecoded()</tt>. Depends only on the word itself,
+     * so it can be reused wherever the same word is found.
+     */
+    private static class Decoded {
+	Decoded(int word) {
+	    this.word = word;
+
+	    int op = Lib.extract(word, 26, 6);
+	    int func = Lib.extract(word, 0, 6);
+	    rs = Lib.extract(word, 21, 5);
+	    rt = Lib.extract(word, 16, 5);
+	    rd = Lib.extract(word, 11, 5);
+	    sh = Lib.extract(word, 6, 5);
+	    target = Lib.extract(word, 0, 26);
+	    imm = Lib.extend(word, 0, 16);
+
+	    if (word == 0) {
+		handler = NOP;
+		return;
+	    }
+
+	    switch (op) {
+	    case 0:
+		switch (func) {
+		case 0x00: handler = SLL; break;
+		case 0x02: handler = SRL; break;
+		case 0x03: handler = SRA; break;
+		case 0x08: handler = JR; break;
+		case 0x0C: handler = SYSCALL; break;
+		case 0x10: handler = MFHI; break;
+		case 0x12: handler = MFLO; break;
+		case 0x18: handler = MULT; break;
+		case 0x19: handler = MULTU; break;
+		case 0x21: handler = ADDU; break;
+		case 0x23: handler = SUBU; break;
+		case 0x24: handler = AND; break;
+		case 0x25: handler = OR; break;
+		case 0x26: handler = XOR; break;
+		case 0x2A: handler = SLT; break;
+		case 0x2B: handler = SLTU; break;
+		}
+		break;
+	    case 1:
+		if (rt == 0x00 || rt == 0x02)
+		    handler = BLTZ;
+		else if (rt == 0x01 || rt == 0x03)
+		    handler = BGEZ;
+		break;
+	    case 0x02: handler = J; break;
+	    case 0x03: handler = JAL; break;
+	    case 0x04: case 0x14: handler = BEQ; break;
+	    case 0x05: case 0x15: handler = BNE; break;
+	    case 0x06: case 0x16: handler = BLEZ; break;
+	    case 0x07: case 0x17: handler = BGTZ; break;
+	    case 0x09: handler = ADDIU; break;
+	    case 0x0A: handler = SLTI; break;
+	    case 0x0B: handler = SLTIU; imm &= 0xFFFF; break;
+	    case 0x0C: handler = ANDI; imm &= 0xFFFF; break;
+	    case 0x0D: handler = ORI; imm &= 0xFFFF; break;
+	    case 0x0E: handler = XORI; imm &= 0xFFFF; break;
+	    case 0x0F: handler = LUI; imm &= 0xFFFF; break;
+	    case 0x20: handler = LOAD; size = 1; break;
+	    case 0x21: handler = LOAD; size = 2; break;
+	    case 0x23: handler = LOAD; size = 4; break;
+	    case 0x24: handler = LOAD; size = 1; unsigned = true; break;
+	    case 0x25: handler = LOAD; size = 2; unsigned = true; break;
+	    case 0x28: handler = STORE; size = 1; break;
+	    case 0x29: handler = STORE; size = 2; break;
+	    case 0x2B: handler = STORE; size = 4; break;
+	    }
+	}
+
+	/**
+	 * Test whether this instruction can start a superinstruction.
+	 */
+	boolean fusesWithNext() {
+	    return handler == LUI || handler == ADDIU ||
+		handler == SLT || handler == SLTU ||
+		handler == SLTI || handler == SLTIU;
+	}
+
+	/**
+	 * Test whether this instruction and <i>next</i> form one of the
+	 * idioms executed as a superinstruction: <tt>lui</tt> followed by an
+	 * <tt>ori</tt> or <tt>addiu</tt> of the same register (loading a
+	 * 32-bit constant or address), a stack pointer adjustment followed by
+	 * a store (a function prologue), or a comparison followed by a
+	 * <tt>beq</tt> or <tt>bne</tt> testing its result against zero.
+	 */
+	boolean fusesWith(Decoded next) {
+	    switch (handler) {
+	    case LUI:
+		return (next.handler == ORI || next.handler == ADDIU) &&
+		    next.rs == rt;
+	    case ADDIU:
+		return rs == regSP && rt == regSP && next.handler == STORE;
+	    case SLTI:
+	    case SLTIU:
+		return (next.handler == BEQ || next.handler == BNE) &&
+		    next.rs == rt && next.rt == 0;
+	    case SLT:
+	    case SLTU:
+		return (next.handler == BEQ || next.handler == BNE) &&
+		    next.rs == rd && next.rt == 0;
+	    default:
+		return false;
+	    }
+	}
+
+	static final int
+	    GENERIC	= 0,
+	    NOP		= 1,
+	    ADDIU	= 2,
+	    SLTI	= 3,
+	    SLTIU	= 4,
+	    ANDI	= 5,
+	    ORI		= 6,
+	    XORI	= 7,
+	    LUI		= 8,
+	    SLL		= 9,
+	    SRL		= 10,
+	    SRA		= 11,
+	    ADDU	= 12,
+	    SUBU	= 13,
+	    AND		= 14,
+	    OR		= 15,
+	    XOR		= 16,
+	    SLT		= 17,
+	    SLTU	= 18,
+	    MFLO	= 19,
+	    MFHI	= 20,
+	    MULT	= 21,
+	    MULTU	= 22,
+	    LOAD	= 23,
+	    STORE	= 24,
+	    BEQ		= 25,
+	    BNE		= 26,
+	    BLEZ	= 27,
+	    BGTZ	= 28,
+	    BLTZ	= 29,
+	    BGEZ	= 30,
+	    J		= 31,
+	    JAL		= 32,
+	    JR		= 33,
+	    SYSCALL	= 34;
+
+	final int word;
+	int handler = GENERIC;
+	int rs, rt, rd, sh, imm, target;
+	int size;
+	boolean unsigned = false;
+	/** The next instruction, if the two form a superinstruction. */
+	Decoded fused = null;
+    }
+
     private static class Mips {
 	Mips() {
 	}
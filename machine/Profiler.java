@@ -0,0 +1,511 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Counts what each instruction of each user program does, and prints a
+ * report when the machine halts.
+ *
+ * <p>
+ * Profiling is turned on by setting <tt>Processor.profile</tt> to
+ * <tt>true</tt>. While it is off, no profiler exists and the processor runs
+ * exactly as it would without one. While it is on, the processor runs every
+ * instruction through its decoding interpreter, and reports to the profiler
+ * as each one retires.
+ *
+ * <p>
+ * Every <tt>Coff</tt> loaded is registered as an <i>image</i>, with
+ * counters indexed by <tt>(PC - text base) / 4</tt>: how often each
+ * instruction retired, how often a basic block was entered there, and how
+ * many TLB misses it took. Loads and stores are counted per virtual page.
+ * The processor does not know which process is running, so an image is
+ * bound to the first address space (a page table, or an ASID when using a
+ * TLB) that runs after it is loaded, and an address space with no image of
+ * its own inherits the last one bound. Kernels that give every process the
+ * same ASID are profiled as if there were one program.
+ *
+ * <p>
+ * If the directory holding the programs also has a symbol file for an image
+ * (<tt>sort.sym</tt> for <tt>sort.coff</tt>, in the format printed by
+ * <tt>nm -n</tt>), the report names functions as well as sections.
+ * <tt>make syms</tt> in the test directory builds them.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler, which reports when the machine halts.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    Profiler(Privilege privilege) {
+	this.privilege = privilege;
+	numTop = Config.getInteger("Processor.profileTop", numTop);
+
+	Machine.addStatsReporter(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Register a program that has just been loaded.
+     *
+     * @param	coff	the program's executable.
+     * @param	name	the name of the file it was loaded from.
+     */
+    void addImage(Coff coff, String name) {
+	Image image = new Image(coff, name);
+	images.add(image);
+	unbound.add(image);
+    }
+
+    /**
+     * Note that an instruction is about to run in the address space given by
+     * <i>pageTable</i>, which is a <tt>TranslationEntry[]</tt> or a
+     * <tt>PageTable</tt>, or by <i>asid</i> if <i>pageTable</i> is
+     * <tt>null</tt>.
+     */
+    void enter(Object pageTable, int asid) {
+	if (pageTable != lastPageTable || asid != lastASID) {
+	    lastPageTable = pageTable;
+	    lastASID = asid;
+	    current = bind(pageTable != null ? pageTable
+			   : (Object) Integer.valueOf(asid));
+	}
+    }
+
+    /**
+     * Note that the instruction at <i>pc</i> has retired. An instruction
+     * that causes an exception other than a syscall does not retire; it
+     * runs again once the kernel has handled the exception.
+     *
+     * @param	pc	the address of the instruction.
+     * @param	branch	<tt>true</tt> if the instruction is a branch or jump.
+     * @param	access	<tt>accessLoad</tt>, <tt>accessStore</tt> or
+     *			<tt>accessNone</tt>.
+     * @param	vaddr	the address loaded or stored.
+     */
+    void retire(int pc, boolean branch, int access, int vaddr) {
+	numInstructions++;
+
+	if (current == null) {
+	    numUnattributed++;
+	    return;
+	}
+
+	int index = current.index(pc);
+	if (index < 0) {
+	    numUnattributed++;
+	}
+	else {
+	    if (current.blockEnded || pc != current.lastPC+4)
+		current.entries[index]++;
+	    current.counts[index]++;
+
+	    // a block ends with the delay slot of a branch
+	    current.blockEnded = current.delaySlot;
+	    current.delaySlot = branch;
+	    current.lastPC = pc;
+	}
+
+	if (access != accessNone)
+	    current.access(access, vaddr);
+    }
+
+    /**
+     * Charge TLB misses to the instruction at <i>pc</i>.
+     */
+    void miss(int pc, int numMisses) {
+	if (current == null)
+	    return;
+
+	int index = current.index(pc);
+	if (index >= 0)
+	    current.misses[index] += numMisses;
+    }
+
+    /**
+     * Return the image bound to an address space, binding one if there is
+     * none. Page tables are held weakly, so that the page table of a process
+     * that has exited can be collected; ASIDs are reused, so they are held
+     * for the whole run.
+     */
+    private Image bind(Object space) {
+	Map<Object, Image> bound =
+	    (space instanceof Integer) ? boundASIDs : boundPageTables;
+
+	Image image = bound.get(space);
+	if (image != null)
+	    return image;
+
+	if (!unbound.isEmpty())
+	    image = unbound.removeFirst();
+	else
+	    image = lastBound;
+
+	if (image != null) {
+	    bound.put(space, image);
+	    lastBound = image;
+	}
+	return image;
+    }
+
+    /**
+     * Print the report.
+     */
+    void print() {
+	System.out.println("Profile: " + numInstructions
+			   + " instructions, " + numUnattributed
+			   + " outside any program's text");
+
+	for (Image image : images)
+	    image.print();
+    }
+
+    private static String percent(long part, long whole) {
+	return whole == 0 ? "-" :
+	    String.format("%.1f%%", 100.0 * part / whole);
+    }
+
+    /**
+     * A loaded program and its counters.
+     */
+    private class Image {
+	Image(Coff coff, String name) {
+	    this.name = name;
+
+	    int numSections = coff.getNumSections();
+	    sectionNames = new String[numSections];
+	    sectionStarts = new int[numSections];
+	    sectionEnds = new int[numSections];
+
+	    int start = Integer.MAX_VALUE, end = 0;
+	    for (int s=0; s<numSections; s++) {
+		CoffSection section = coff.getSection(s);
+		sectionNames[s] = section.getName();
+		sectionStarts[s] = section.getFirstVPN() * Processor.pageSize;
+		sectionEnds[s] = sectionStarts[s] +
+		    section.getLength() * Processor.pageSize;
+
+		if (section.isExecutable()) {
+		    start = Math.min(start, sectionStarts[s]);
+		    end = Math.max(end, sectionEnds[s]);
+		}
+	    }
+
+	    if (start > end)
+		start = end = 0;
+
+	    textBase = start;
+	    counts = new long[(end - start) / 4];
+	    entries = new long[counts.length];
+	    misses = new long[counts.length];
+	}
+
+	int index(int pc) {
+	    int index = (pc - textBase) >>> 2;
+	    return index < counts.length ? index : -1;
+	}
+
+	void access(int access, int vaddr) {
+	    int vpn = Processor.pageFromAddress(vaddr);
+	    if (vpn >= loads.length) {
+		int length = Math.max(vpn+1, loads.length*2);
+		loads = Arrays.copyOf(loads, length);
+		stores = Arrays.copyOf(stores, length);
+	    }
+
+	    if (access == accessLoad)
+		loads[vpn]++;
+	    else
+		stores[vpn]++;
+	}
+
+	String section(int vaddr) {
+	    for (int s=0; s<sectionNames.length; s++) {
+		if (vaddr >= sectionStarts[s] && vaddr < sectionEnds[s])
+		    return sectionNames[s];
+	    }
+	    return "-";
+	}
+
+	/**
+	 * Describe <i>pc</i> by its section and, if there are symbols, its
+	 * function.
+	 */
+	String where(int pc) {
+	    if (symbolNames == null)
+		loadSymbols();
+
+	    int i = Arrays.binarySearch(symbolAddresses, pc);
+	    if (i < 0)
+		i = -i - 2;
+	    if (i < 0)
+		return section(pc);
+
+	    int offset = pc - symbolAddresses[i];
+	    return section(pc) + " " + symbolNames[i] +
+		(offset == 0 ? "" : "+0x" + Integer.toHexString(offset));
+	}
+
+	/**
+	 * Read the text symbols from the symbol file, if there is one.
+	 */
+	private void loadSymbols() {
+	    final ArrayList<Integer> addresses = new ArrayList<Integer>();
+	    final ArrayList<String> names = new ArrayList<String>();
+
+	    String base = name.endsWith(".coff") ?
+		name.substring(0, name.length()-5) : name;
+	    final File file = new File(Machine.getTestDirectory(),
+				       base + ".sym");
+
+	    privilege.doPrivileged(new PrivilegedAction() {
+		    public Object run() {
+			readSymbols(file, addresses, names);
+			return null;
+		    }
+		});
+
+	    symbolAddresses = new int[addresses.size()];
+	    symbolNames = new String[names.size()];
+	    for (int i=0; i<symbolAddresses.length; i++) {
+		symbolAddresses[i] = addresses.get(i);
+		symbolNames[i] = names.get(i);
+	    }
+	}
+
+	private void readSymbols(File file, ArrayList<Integer> addresses,
+				 ArrayList<String> names) {
+	    if (!file.exists())
+		return;
+
+	    try {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+		    String line;
+		    while ((line = in.readLine()) != null) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length != 3 ||
+			    !fields[1].equalsIgnoreCase("t"))
+			    continue;
+
+			// nm -n sorts by address
+			addresses.add((int) Long.parseLong(fields[0], 16));
+			names.add(fields[2]);
+		    }
+		}
+		finally {
+		    in.close();
+		}
+	    }
+	    catch (IOException e) {
+		addresses.clear();
+		names.clear();
+	    }
+	    catch (NumberFormatException e) {
+		addresses.clear();
+		names.clear();
+	    }
+	}
+
+	void print() {
+	    long total = 0;
+	    for (int i=0; i<counts.length; i++)
+		total += counts[i];
+
+	    System.out.println();
+	    System.out.println(name + ": " + total + " instructions");
+
+	    for (int s=0; s<sectionNames.length; s++) {
+		long inSection = 0;
+		for (int pc=sectionStarts[s]; pc<sectionEnds[s]; pc+=4) {
+		    int index = index(pc);
+		    if (index >= 0)
+			inSection += counts[index];
+		}
+		if (inSection > 0)
+		    System.out.println(String.format("  %-8s %12d %7s",
+						     sectionNames[s], inSection,
+						     percent(inSection, total)));
+	    }
+
+	    printInstructions(total);
+	    printBlocks(total);
+	    printPages();
+	    printMisses();
+	}
+
+	private void printInstructions(long total) {
+	    Integer[] hottest = top(counts);
+	    if (hottest.length == 0)
+		return;
+
+	    System.out.println("Hottest instructions:");
+	    System.out.println(String.format("  %-10s %12s %7s  %s",
+					     "pc", "count", "", "where"));
+	    for (Integer index : hottest) {
+		int pc = textBase + index*4;
+		System.out.println(String.format("  0x%08x %12d %7s  %s",
+						 pc, counts[index],
+						 percent(counts[index], total),
+						 where(pc)));
+	    }
+	}
+
+	/**
+	 * A basic block runs from an instruction where a block was entered
+	 * to the next such instruction, or to the first one never run. It
+	 * ran as often as its first instruction, since it may also be
+	 * reached by falling through from the block before it.
+	 */
+	private void printBlocks(long total) {
+	    final long[] blockCounts = new long[counts.length];
+	    final int[] blockEnds = new int[counts.length];
+
+	    for (int i=0; i<counts.length; ) {
+		if (entries[i] == 0) {
+		    i++;
+		    continue;
+		}
+
+		int j = i;
+		long sum = 0;
+		do {
+		    sum += counts[j++];
+		} while (j < counts.length && entries[j] == 0 && counts[j] > 0);
+
+		blockCounts[i] = sum;
+		blockEnds[i] = j;
+		i = j;
+	    }
+
+	    Integer[] hottest = top(blockCounts);
+	    if (hottest.length == 0)
+		return;
+
+	    System.out.println("Hottest basic blocks:");
+	    System.out.println(String.format("  %-21s %12s %7s %10s  %s",
+					     "pc", "instructions", "",
+					     "runs", "where"));
+	    for (Integer index : hottest) {
+		int start = textBase + index*4;
+		int end = textBase + blockEnds[index]*4 - 4;
+		System.out.println(String.format("  0x%08x-0x%08x %12d %7s %10d  %s",
+						 start, end, blockCounts[index],
+						 percent(blockCounts[index],
+							 total),
+						 counts[index],
+						 where(start)));
+	    }
+	}
+
+	private void printPages() {
+	    long[] accesses = new long[loads.length];
+	    for (int vpn=0; vpn<loads.length; vpn++)
+		accesses[vpn] = loads[vpn] + stores[vpn];
+
+	    Integer[] hottest = top(accesses);
+	    if (hottest.length == 0)
+		return;
+
+	    System.out.println("Busiest pages:");
+	    System.out.println(String.format("  %-8s %-8s %12s %12s",
+					     "vpn", "section", "loads",
+					     "stores"));
+	    for (Integer vpn : hottest) {
+		System.out.println(String.format("  %-8d %-8s %12d %12d",
+						 vpn,
+						 section(vpn*Processor.pageSize),
+						 loads[vpn], stores[vpn]));
+	    }
+	}
+
+	private void printMisses() {
+	    Integer[] hottest = top(misses);
+	    if (hottest.length == 0)
+		return;
+
+	    System.out.println("TLB misses by instruction:");
+	    for (Integer index : hottest) {
+		int pc = textBase + index*4;
+		System.out.println(String.format("  0x%08x %12d  %s",
+						 pc, misses[index],
+						 where(pc)));
+	    }
+	}
+
+	/**
+	 * Return the indices of the largest non-zero values, largest first.
+	 */
+	private Integer[] top(final long[] values) {
+	    ArrayList<Integer> indices = new ArrayList<Integer>();
+	    for (int i=0; i<values.length; i++) {
+		if (values[i] > 0)
+		    indices.add(i);
+	    }
+
+	    Collections.sort(indices, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			if (values[a] != values[b])
+			    return values[a] > values[b] ? -1 : 1;
+			return a - b;
+		    }
+		});
+
+	    int length = Math.min(numTop, indices.size());
+	    return indices.subList(0, length).toArray(new Integer[length]);
+	}
+
+	private String name;
+	private String[] sectionNames;
+	private int[] sectionStarts, sectionEnds;
+
+	private int textBase;
+	private long[] counts, entries, misses;
+	private long[] loads = new long[0], stores = new long[0];
+
+	private int lastPC = -1;
+	private boolean delaySlot = false, blockEnded = true;
+
+	private int[] symbolAddresses;
+	private String[] symbolNames;
+    }
+
+    /** The instruction does not access data memory. */
+    static final int accessNone = 0;
+    /** The instruction loads from data memory. */
+    static final int accessLoad = 1;
+    /** The instruction stores to data memory. */
+    static final int accessStore = 2;
+
+    private Privilege privilege;
+    private int numTop = 10;
+
+    private long numInstructions = 0, numUnattributed = 0;
+
+    private ArrayList<Image> images = new ArrayList<Image>();
+    private LinkedList<Image> unbound = new LinkedList<Image>();
+    private HashMap<Object, Image> boundASIDs = new HashMap<Object, Image>();
+    private WeakHashMap<Object, Image> boundPageTables =
+	new WeakHashMap<Object, Image>();
+    private Image current = null, lastBound = null;
+
+    private Object lastPageTable = null;
+    private int lastASID = -1;
+}
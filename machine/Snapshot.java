@@ -0,0 +1,336 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the state of the simulated machine to a file, and loads it back, so
+ * that a run can resume from a warmed image instead of booting and running
+ * up to the same point again.
+ *
+ * <p>
+ * A snapshot holds the statistics, the processor's registers, its page table
+ * or TLB, every physical page that is not all zeros, and the time and type
+ * of each pending interrupt, followed by a record from each registered
+ * <tt>Participant</tt>. The file is compressed.
+ *
+ * <p>
+ * The machine cannot save what only exists as Java objects: the stacks of
+ * kernel threads and the handlers of pending interrupts. So a snapshot is
+ * taken between two user instructions, and is restored after the kernel has
+ * booted again and started the same program with the same configuration.
+ * The processor then replaces its state with the snapshot's, and each
+ * pending interrupt is moved to the time its counterpart in the snapshot
+ * had. Kernels register participants to carry their own tables across.
+ *
+ * <p>
+ * Snapshots are requested with the <tt>-snapshot</tt> and <tt>-restore</tt>
+ * switches; see <tt>Machine</tt>.
+ */
+public final class Snapshot {
+    private Snapshot() {
+    }
+
+    /**
+     * Kernel state saved with a snapshot. Participants are matched by name
+     * when a snapshot is restored; a record with no matching participant is
+     * skipped.
+     */
+    public interface Participant {
+	/**
+	 * Return the name this participant's record is saved under.
+	 *
+	 * @return	a name unique among participants.
+	 */
+	public String getName();
+
+	/**
+	 * Write this participant's state.
+	 *
+	 * @param	out	the stream to write to.
+	 */
+	public void save(DataOutput out) throws IOException;
+
+	/**
+	 * Replace this participant's state with the state written by
+	 * <tt>save()</tt>.
+	 *
+	 * @param	in	the stream to read from.
+	 */
+	public void restore(DataInput in) throws IOException;
+    }
+
+    /**
+     * Register kernel state to be saved with, and restored from, snapshots.
+     * Must be called before the first user instruction runs.
+     *
+     * @param	participant	the state to save.
+     */
+    public static void addParticipant(Participant participant) {
+	Lib.assertTrue(participant != null);
+	participants.add(participant);
+    }
+
+    /**
+     * Write a snapshot of the machine to a file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	processor	the processor to save.
+     * @param	fileName	the file to write.
+     */
+    static void save(final Privilege privilege, final Processor processor,
+		     final String fileName) {
+	long startTime = System.nanoTime();
+
+	try {
+	    privilege.doPrivileged(new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			DataOutputStream out =
+			    new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(
+				    new FileOutputStream(fileName))));
+			try {
+			    save(privilege, processor, out);
+			}
+			finally {
+			    out.close();
+			}
+			return null;
+		    }
+		});
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not write snapshot " + fileName
+				 + ": " + e);
+	}
+
+	System.out.println("Snapshot written to " + fileName + " at tick "
+			   + privilege.stats.totalTicks + " in "
+			   + (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    /**
+     * Replace the state of the machine with a snapshot read from a file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	processor	the processor to restore.
+     * @param	fileName	the file to read.
+     */
+    static void restore(final Privilege privilege, final Processor processor,
+			final String fileName) {
+	long startTime = System.nanoTime();
+
+	try {
+	    privilege.doPrivileged(new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			DataInputStream in =
+			    new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(
+				    new FileInputStream(fileName))));
+			try {
+			    restore(privilege, processor, in);
+			}
+			finally {
+			    in.close();
+			}
+			return null;
+		    }
+		});
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not read snapshot " + fileName
+				 + ": " + e);
+	}
+
+	System.out.println("Snapshot restored from " + fileName + " at tick "
+			   + privilege.stats.totalTicks + " in "
+			   + (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    private static void save(Privilege privilege, Processor processor,
+			     DataOutputStream out) throws IOException {
+	out.writeInt(magic);
+	out.writeInt(version);
+
+	saveStats(privilege.stats, out);
+	processor.saveState(out);
+	saveMemory(processor.getPhysicalMemory(), out);
+	Machine.interrupt().saveState(out);
+
+	out.writeInt(participants.size());
+	for (Participant participant : participants) {
+	    ByteArrayOutputStream record = new ByteArrayOutputStream();
+	    participant.save(new DataOutputStream(record));
+
+	    out.writeUTF(participant.getName());
+	    out.writeInt(record.size());
+	    record.writeTo(out);
+	}
+    }
+
+    private static void restore(Privilege privilege, Processor processor,
+				DataInputStream in) throws IOException {
+	Lib.assertTrue(in.readInt() == magic, "not a snapshot");
+	Lib.assertTrue(in.readInt() == version, "wrong snapshot version");
+
+	long liveTicks = privilege.stats.totalTicks;
+
+	restoreStats(privilege.stats, in);
+	processor.restoreState(in);
+	restoreMemory(processor.getPhysicalMemory(), in);
+	Machine.interrupt().restoreState(in,
+					 privilege.stats.totalTicks - liveTicks);
+
+	int numRecords = in.readInt();
+	for (int i=0; i<numRecords; i++) {
+	    String name = in.readUTF();
+	    byte[] record = new byte[in.readInt()];
+	    in.readFully(record);
+
+	    Participant participant = findParticipant(name);
+	    if (participant == null) {
+		Lib.debug(dbgSnapshot, "no participant for record " + name);
+		continue;
+	    }
+
+	    participant.restore(new DataInputStream(
+		new ByteArrayInputStream(record)));
+	}
+    }
+
+    private static Participant findParticipant(String name) {
+	for (Participant participant : participants) {
+	    if (participant.getName().equals(name))
+		return participant;
+	}
+	return null;
+    }
+
+    private static void saveStats(Stats stats, DataOutput out)
+	throws IOException {
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numTLBRefills);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+	out.writeLong(stats.numL1IAccesses);
+	out.writeLong(stats.numL1IMisses);
+	out.writeLong(stats.numL1DAccesses);
+	out.writeLong(stats.numL1DMisses);
+	out.writeLong(stats.numL2Accesses);
+	out.writeLong(stats.numL2Misses);
+	out.writeLong(stats.numCacheWritebacks);
+    }
+
+    private static void restoreStats(Stats stats, DataInput in)
+	throws IOException {
+	stats.totalTicks = in.readLong();
+	stats.kernelTicks = in.readLong();
+	stats.userTicks = in.readLong();
+	stats.numDiskReads = in.readInt();
+	stats.numDiskWrites = in.readInt();
+	stats.numConsoleReads = in.readInt();
+	stats.numConsoleWrites = in.readInt();
+	stats.numPageFaults = in.readInt();
+	stats.numTLBMisses = in.readInt();
+	stats.numTLBRefills = in.readInt();
+	stats.numPacketsSent = in.readInt();
+	stats.numPacketsReceived = in.readInt();
+	stats.numL1IAccesses = in.readLong();
+	stats.numL1IMisses = in.readLong();
+	stats.numL1DAccesses = in.readLong();
+	stats.numL1DMisses = in.readLong();
+	stats.numL2Accesses = in.readLong();
+	stats.numL2Misses = in.readLong();
+	stats.numCacheWritebacks = in.readLong();
+    }
+
+    /**
+     * Write each page that is not all zeros, preceded by its page number,
+     * and end the list with -1.
+     */
+    private static void saveMemory(PhysicalMemory memory, DataOutput out)
+	throws IOException {
+	int numPages = (int) (memory.getSize() / Processor.pageSize);
+	byte[] page = new byte[Processor.pageSize];
+
+	out.writeInt(numPages);
+	for (int ppn=0; ppn<numPages; ppn++) {
+	    memory.read((long) ppn * Processor.pageSize, page, 0, page.length);
+	    if (isZero(page))
+		continue;
+
+	    out.writeInt(ppn);
+	    out.write(page);
+	}
+	out.writeInt(-1);
+    }
+
+    private static void restoreMemory(PhysicalMemory memory, DataInput in)
+	throws IOException {
+	int numPages = (int) (memory.getSize() / Processor.pageSize);
+	Lib.assertTrue(in.readInt() == numPages,
+		       "snapshot has a different amount of memory");
+
+	byte[] page = new byte[Processor.pageSize];
+	byte[] saved = new byte[Processor.pageSize];
+
+	int next = in.readInt();
+	for (int ppn=0; ppn<numPages; ppn++) {
+	    if (ppn == next) {
+		in.readFully(saved);
+		memory.write((long) ppn * Processor.pageSize, saved, 0,
+			     saved.length);
+		next = in.readInt();
+	    }
+	    else {
+		// pages missing from the snapshot were zero
+		memory.write((long) ppn * Processor.pageSize, page, 0,
+			     page.length);
+	    }
+	}
+	Lib.assertTrue(next == -1);
+    }
+
+    private static boolean isZero(byte[] page) {
+	for (int i=0; i<page.length; i++) {
+	    if (page[i] != 0)
+		return false;
+	}
+	return true;
+    }
+
+    private static ArrayList<Participant> participants =
+	new ArrayList<Participant>();
+
+    private static final int magic = 0x4E534E50;
+    private static final int version = 2;
+
+    private static final char dbgSnapshot = 'k';
+}
@@ -26,9 +26,19 @@ public final class Stats {
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + (numTLBRefills > 0 ?
+			      ", hardware refills " + numTLBRefills : ""));
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numL1IAccesses + numL1DAccesses > 0)
+	    System.out.println("Caches: L1-I accesses " + numL1IAccesses
+			       + ", misses " + numL1IMisses
+			       + "; L1-D accesses " + numL1DAccesses
+			       + ", misses " + numL1DMisses
+			       + "; L2 accesses " + numL2Accesses
+			       + ", misses " + numL2Misses
+			       + "; write-backs " + numCacheWritebacks);
     }
 
     /**
@@ -57,11 +67,31 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of TLB misses that the processor handled itself, using the
+     * kernel's <tt>PageWalker</tt>, without raising an exception.
+     */
+    public int numTLBRefills = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
 
+    /** The number of instruction fetches that looked in the L1-I cache. */
+    public long numL1IAccesses = 0;
+    /** The number of instruction fetches that missed in the L1-I cache. */
+    public long numL1IMisses = 0;
+    /** The number of loads and stores that looked in the L1-D cache. */
+    public long numL1DAccesses = 0;
+    /** The number of loads and stores that missed in the L1-D cache. */
+    public long numL1DMisses = 0;
+    /** The number of L1 misses and write-backs that looked in the L2 cache. */
+    public long numL2Accesses = 0;
+    /** The number of those that missed in the L2 cache. */
+    public long numL2Misses = 0;
+    /** The number of dirty lines written back to main memory. */
+    public long numCacheWritebacks = 0;
+
     /**
      * The amount to advance simulated time after each user instructions is
      * executed.
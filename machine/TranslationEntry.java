@@ -48,6 +48,8 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
+	global = entry.global;
     }
 
     /** The virtual page number. */
@@ -78,4 +80,18 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this entry belongs to. Only used by the TLB, where an
+     * entry matches only while this is the processor's current ASID (see
+     * <tt>Processor.setCurrentASID()</tt>), unless <tt>global</tt> is set.
+     */
+    public int asid = 0;
+
+    /**
+     * If this flag is <tt>true</tt>, this TLB entry matches in every address
+     * space, regardless of <tt>asid</tt>. Use it for pages shared by all
+     * processes.
+     */
+    public boolean global = false;
 }
@@ -0,0 +1,37 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.machine.*;
+
+/**
+ * The processor state a kernel usually needs to handle an exception, copied
+ * out of the registers when the exception is raised. The processor keeps a
+ * single trap frame and refills it on every exception, so a handler should
+ * read what it needs before it does anything that could let another user
+ * thread run.
+ *
+ * @see	Processor#getTrapFrame
+ */
+public final class TrapFrame {
+    /**
+     * Allocate a new trap frame. Only the processor needs to do this.
+     */
+    TrapFrame() {
+    }
+
+    /** The exception that occurred, one of <tt>Processor.exception*</tt>. */
+    public int cause;
+    /** The contents of the bad virtual address register. */
+    public int badVAddr;
+    /** The contents of register v0, which holds the syscall number. */
+    public int v0;
+    /** The contents of argument register a0. */
+    public int a0;
+    /** The contents of argument register a1. */
+    public int a1;
+    /** The contents of argument register a2. */
+    public int a2;
+    /** The contents of argument register a3. */
+    public int a3;
+}
@@ -20,15 +20,31 @@ public class PostOffice {
      * Allocate a new post office, using an array of <tt>SynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
+     *
+     * <p>
+     * Mailboxes hold any number of messages, unless
+     * <tt>PostOffice.mailboxCapacity</tt> is set. Then a full mailbox drops
+     * new mail, so the postal worker never blocks on one busy port, and the
+     * number of messages dropped is printed when the machine halts.
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
+	int mailboxCapacity = Config.getInteger("PostOffice.mailboxCapacity", 0);
+	Lib.assertTrue(mailboxCapacity >= 0);
+
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList(mailboxCapacity,
+				      SynchList.overflowDropNewest);
+
+	if (mailboxCapacity > 0) {
+	    Machine.addStatsReporter(new Runnable() {
+		    public void run() { printDropped(); }
+		});
+	}
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -43,6 +59,10 @@ public class PostOffice {
 		public void run() { postalDelivery(); }
 	    });
 
+	// receivers waiting on a mailbox donate to the postal worker
+	for (int i=0; i<queues.length; i++)
+	    queues[i].setProducer(t);
+
 	t.fork();
     }
 
@@ -88,11 +108,24 @@ public class PostOffice {
 		System.out.println("delivering mail to port " + mail.dstPort
 				   + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    // atomically add message to the mailbox and wake a waiting thread;
+	    // a full mailbox loses the message, just like the network would
+	    if (!queues[mail.dstPort].add(mail))
+		Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropped");
 	}
     }
 
+    /**
+     * Print how many messages were dropped because their mailbox was full.
+     */
+    private void printDropped() {
+	int dropped = 0;
+	for (int i=0; i<queues.length; i++)
+	    dropped += queues[i].getDropped();
+
+	System.out.println("Mail dropped by full mailboxes: " + dropped);
+    }
+
     /**
      * Called when a packet has arrived and can be dequeued from the network
      * link.
@@ -0,0 +1,34 @@
+/* execbench.c
+ *	Benchmark for process creation and teardown.
+ *
+ *	Runs echo Runs times, one process after another, joining each before
+ *	starting the next, and exits with the number that exited normally
+ *	with status 0. When the machine halts, the kernel prints how many
+ *	processes were run and how many simulated ticks each took, which
+ *	covers loading the program, running it, and freeing its memory and
+ *	descriptors.
+ */
+
+#include "syscall.h"
+
+#define Runs	10000
+
+int
+main()
+{
+    char *argv[1];
+    int i, pid, status, succeeded = 0;
+
+    argv[0] = "echo";
+
+    for (i = 0; i < Runs; i++) {
+	pid = exec("echo.coff", 1, argv);
+	if (pid == -1)
+	    break;
+
+	if (join(pid, &status) == 1 && status == 0)
+	    succeeded++;
+    }
+
+    return succeeded;	/* should be Runs */
+}
@@ -0,0 +1,26 @@
+/* trapbench.c
+ *	Microbenchmark for the syscall trap path.
+ *
+ *	Makes a large number of cheap system calls, close() on a descriptor
+ *	that is never open, and exits with the number that failed as
+ *	expected. Time the run on the host, and divide by Calls, to measure
+ *	the cost of one round trip through the processor and the kernel's
+ *	exception handler.
+ */
+
+#include "syscall.h"
+
+#define Calls	1000000
+
+int
+main()
+{
+    int i, failed = 0;
+
+    for (i = 0; i < Calls; i++) {
+	if (close(-1) == -1)
+	    failed++;
+    }
+
+    return failed;	/* should be Calls */
+}
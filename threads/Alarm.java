@@ -1,4 +1,5 @@
 package nachos.threads;
+import java.util.Iterator;
 import java.util.PriorityQueue;
 import nachos.machine.*;
 
@@ -38,7 +39,11 @@ public class Alarm {
         //o igual que la hora de la máquina, este thread sale de la cola y se coloca en ready().
         while (!waitQueue.isEmpty() && waitQueue.peek().wakeTime <= Machine.timer().getTime())
         {
-            waitQueue.poll().thread.ready();
+            WaitThread waiter = waitQueue.poll();
+            if (waiter.handler != null)
+                waiter.handler.run();
+            else
+                waiter.thread.ready();
         }
         KThread.yield();
 
@@ -76,6 +81,58 @@ public class Alarm {
         //    KThread.yield();
     }
 
+    /**
+     * Arrange for <i>handler</i> to be run, with interrupts disabled, from the
+     * first timer interrupt where
+     *
+     * <p><blockquote>
+     * (current time) >= (schedule called time)+(x)
+     * </blockquote>
+     *
+     * <p>
+     * Unlike <tt>waitUntil()</tt>, the current thread does not sleep. The
+     * handler must not block; it is typically used to <tt>V()</tt> a
+     * semaphore so that a thread can stop waiting after a timeout.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the handler to run when the time has passed.
+     */
+    public void schedule(long x, Runnable handler) {
+        Lib.assertTrue(handler != null);
+
+        long wakeTime = Machine.timer().getTime() + x;
+        boolean intStatus = Machine.interrupt().disable();
+        waitQueue.add(new WaitThread(null, wakeTime, handler));
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Cancel a handler passed to <tt>schedule()</tt>, so that it never runs.
+     * Callers that stop waiting early should cancel their handler, or it
+     * stays queued until its time comes.
+     *
+     * @param	handler	the handler to cancel.
+     * @return	<tt>true</tt> if the handler was cancelled, or
+     *		<tt>false</tt> if it has already run.
+     */
+    public boolean cancel(Runnable handler) {
+        Lib.assertTrue(handler != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean cancelled = false;
+        for (Iterator<WaitThread> i = waitQueue.iterator(); i.hasNext(); ) {
+            if (i.next().handler == handler) {
+                i.remove();
+                cancelled = true;
+                break;
+            }
+        }
+
+        Machine.interrupt().restore(intStatus);
+        return cancelled;
+    }
+
     /**
      * En esta clase se guarda el thread junto con el wakeTime definido
      * en waitUntil().
@@ -91,6 +148,8 @@ public class Alarm {
         //deseado y la hora en que se desea despertarlo.
         KThread thread;
         long wakeTime;
+        //Si no es null, se ejecuta en lugar de despertar al thread.
+        Runnable handler;
 
         //Constructor de la clase.
         //Asigna los valores enviados como parámetros
@@ -100,6 +159,12 @@ public class Alarm {
             this.wakeTime = wakeTime;
         }
 
+        public WaitThread(KThread thread, long wakeTime, Runnable handler)
+        {
+            this(thread, wakeTime);
+            this.handler = handler;
+        }
+
         //Método de la interfaz Comparable
         //Se utilizará para ordenar una cola formada
         //por objetos de esta misma clase.
@@ -0,0 +1,141 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that uses the immediate priority-ceiling protocol instead
+ * of priority donation.
+ *
+ * <p>
+ * Every ceiling lock has a fixed ceiling priority, which should be at least
+ * the priority of any thread that will ever use it. As soon as a thread
+ * acquires the lock, its priority is raised to the ceiling; it is restored
+ * when the lock is released. Because the holder already runs at the highest
+ * priority of any possible waiter, the lock's wait queue does not transfer
+ * priority, and a waiting thread never walks a donation chain. A thread can
+ * be blocked by at most one lower-priority critical section.
+ *
+ * <p>
+ * The holder's priority must not be changed by anyone else while it holds a
+ * ceiling lock, since <tt>release()</tt> restores the value it had when it
+ * was given the lock. Ceiling locks nest correctly as long as they are
+ * released in the reverse order of acquisition.
+ */
+public class CeilingLock extends Lock {
+    /**
+     * Allocate a new ceiling lock. The lock will initially be <i>free</i>.
+     *
+     * @param	ceiling	the priority given to the holder of this lock.
+     */
+    public CeilingLock(int ceiling) {
+	this(ceiling, null);
+    }
+
+    /**
+     * Allocate a new named ceiling lock.
+     *
+     * @param	ceiling	the priority given to the holder of this lock.
+     * @param	name	the name of this lock, or <tt>null</tt> to name it
+     *			after the code allocating it.
+     */
+    public CeilingLock(int ceiling, String name) {
+	super(name, "CeilingLock", false);
+	this.ceiling = ceiling;
+    }
+
+    /**
+     * Raise the new holder to the ceiling priority, if it is not already at
+     * least that high. This happens in the same interrupts-disabled section
+     * that hands over the lock, so the holder never runs below the ceiling.
+     */
+    protected void granted(KThread thread) {
+	savedPriority = ThreadedKernel.scheduler.getPriority(thread);
+	if (savedPriority < ceiling)
+	    ThreadedKernel.scheduler.setPriority(thread, ceiling);
+    }
+
+    /**
+     * Restore the priority the current thread had before it was given this
+     * lock and release it, in one interrupts-disabled section.
+     */
+    public void release() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (savedPriority < ceiling)
+	    ThreadedKernel.scheduler.setPriority(savedPriority);
+
+	super.release();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the ceiling priority of this lock.
+     *
+     * @return	the priority given to the holder of this lock.
+     */
+    public int getCeiling() {
+	return ceiling;
+    }
+
+    /**
+     * Compare a donating <tt>Lock</tt> with a <tt>CeilingLock</tt>. Several
+     * threads of different priorities repeatedly acquire each lock, sleeping
+     * briefly while they hold it so that the others contend. Prints the
+     * simulated ticks and host time each run took. Meaningful only under
+     * <tt>PriorityScheduler</tt>.
+     */
+    public static void selfTest() {
+	System.out.println("CeilingLock benchmark: donation vs. ceiling");
+
+	benchmark("Lock", new Lock("bench.donation"));
+	benchmark("CeilingLock",
+		  new CeilingLock(PriorityScheduler.priorityMaximum,
+				  "bench.ceiling"));
+    }
+
+    private static void benchmark(String label, final Lock lock) {
+	long startTicks = Machine.timer().getTime();
+	long startNanos = System.nanoTime();
+
+	KThread[] threads = new KThread[benchThreads];
+	for (int t=0; t<benchThreads; t++) {
+	    threads[t] = new KThread(new Runnable() {
+		    public void run() {
+			for (int i=0; i<benchIterations; i++) {
+			    lock.acquire();
+			    ThreadedKernel.alarm.waitUntil(benchHoldTicks);
+			    lock.release();
+			    KThread.yield();
+			}
+		    }
+		}).setName(label + " bench #" + t);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[t],
+		PriorityScheduler.priorityMinimum + 1 + t % 6);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	for (int t=0; t<benchThreads; t++)
+	    threads[t].fork();
+	for (int t=0; t<benchThreads; t++)
+	    threads[t].join();
+
+	System.out.println(label + ": " + benchThreads + " threads x "
+			   + benchIterations + " acquires, "
+			   + (Machine.timer().getTime() - startTicks)
+			   + " ticks, "
+			   + (System.nanoTime() - startNanos) / 1000000
+			   + " ms host time");
+    }
+
+    private static final int benchThreads = 6;
+    private static final int benchIterations = 200;
+    private static final long benchHoldTicks = 10;
+
+    private int ceiling;
+    private int savedPriority;
+}
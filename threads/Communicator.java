@@ -14,13 +14,29 @@ public class Communicator {
      * Allocate a new communicator.
      */
     public Communicator() {
+        this(null);
+    }
+
+    /**
+     * Allocate a new named communicator. The name identifies its lock and
+     * condition variables in the contention report printed when lock
+     * profiling is enabled.
+     *
+     * @param	name	the name of this communicator, or <tt>null</tt> to name
+     *			it after the code allocating it.
+     */
+    public Communicator(String name) {
+        if (name == null && LockProfiler.isEnabled())
+            name = LockProfiler.allocationSite();
 
         //Se inicializan las variables de condición,
         //el lock y la variable wordReady, la cual
         //Indica si hay un speaker hablando.
-        communicationLock = new Lock();
-        currentSpeaker = new Condition2(communicationLock);
-        currentListener = new Condition2(communicationLock);
+        communicationLock = new Lock(name == null ? null : name + ".lock");
+        currentSpeaker = new Condition2(communicationLock,
+                                        name == null ? null : name + ".speaker");
+        currentListener = new Condition2(communicationLock,
+                                         name == null ? null : name + ".listener");
         wordReady = false;
     }
 
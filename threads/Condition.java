@@ -79,7 +79,7 @@ public class Condition {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
+	Semaphore waiter = newWaiter();
 	waitQueue.add(waiter);
 
 	conditionLock.release();
@@ -87,6 +87,60 @@ public class Condition {
 	conditionLock.acquire();	
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once at least
+     * <i>timeoutTicks</i> clock ticks have passed. The associated lock is
+     * reacquired before returning in either case.
+     *
+     * @param	timeoutTicks	the minimum number of clock ticks to wait.
+     * @return	<tt>true</tt> if this thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, <tt>false</tt> if the timeout expired first.
+     */
+    public boolean sleep(long timeoutTicks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	Lib.assertTrue(timeoutTicks >= 0);
+
+	final Semaphore waiter = newWaiter();
+	waitQueue.add(waiter);
+
+	Runnable timeout = new Runnable() {
+		public void run() { waiter.V(); }
+	    };
+	ThreadedKernel.alarm.schedule(timeoutTicks, timeout);
+
+	conditionLock.release();
+	waiter.P();
+	conditionLock.acquire();
+
+	// still queued means nobody called wake() on us
+	boolean woken = !waitQueue.remove(waiter);
+	// don't leave the timeout queued until it expires
+	if (woken)
+	    ThreadedKernel.alarm.cancel(timeout);
+	return woken;
+    }
+
+    /**
+     * Designate the thread expected to call <tt>wake()</tt> or
+     * <tt>wakeAll()</tt>. Threads that go to sleep afterwards donate their
+     * priority to it while they wait. Pass <tt>null</tt> to turn donation
+     * off for later sleepers.
+     *
+     * @param	thread	the expected signaler, or <tt>null</tt> for none.
+     */
+    public void setSignaler(KThread thread) {
+	signaler = thread;
+    }
+
+    private Semaphore newWaiter() {
+	if (signaler == null)
+	    return new Semaphore(0, false, false);
+
+	Semaphore waiter = new Semaphore(0, false, true);
+	waiter.setSignaler(signaler);
+	return waiter;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
@@ -105,10 +159,12 @@ public class Condition {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	while (!waitQueue.isEmpty())
-	    wake();
+	for (Semaphore waiter : waitQueue)
+	    waiter.V();
+	waitQueue.clear();
     }
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+    private KThread signaler = null;
 }
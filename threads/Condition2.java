@@ -21,13 +21,66 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+        this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new named condition variable. The name identifies it in the
+     * contention report printed when lock profiling is enabled.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable, or
+     *				<tt>null</tt> to name it after the code
+     *				allocating it.
+     */
+    public Condition2(Lock conditionLock, String name) {
+        this(conditionLock, name, false);
+    }
+
+    /**
+     * Allocate a new named condition variable, optionally with priority
+     * inheritance. If <i>transferPriority</i> is <tt>true</tt>, sleeping
+     * threads donate their priority to the thread designated with
+     * <tt>setSignaler()</tt>.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable, or
+     *				<tt>null</tt> to name it after the code
+     *				allocating it.
+     * @param	transferPriority	<tt>true</tt> if sleepers should donate
+     *					priority to the signaler.
+     */
+    public Condition2(Lock conditionLock, String name,
+                      boolean transferPriority) {
         this.conditionLock = conditionLock;
+        this.transferPriority = transferPriority;
+        profile = LockProfiler.register("Condition2", name);
 
         //Se inicializa la cola de espera.
-        waitQueue=ThreadedKernel.scheduler.newThreadQueue(false);
+        waitQueue=ThreadedKernel.scheduler.newThreadQueue(transferPriority);
 
     }
 
+    /**
+     * Designate the thread expected to call <tt>wake()</tt> or
+     * <tt>wakeAll()</tt>. If this condition variable was created with
+     * priority inheritance, sleeping threads donate their priority to it.
+     * Has no effect otherwise.
+     *
+     * @param	thread	the expected signaler, or <tt>null</tt> for none.
+     */
+    public void setSignaler(KThread thread) {
+        boolean inStatus=Machine.interrupt().disable();
+
+        signaler = thread;
+        if (transferPriority)
+            waitQueue.setOwner(thread);
+
+        Machine.interrupt().restore(inStatus);
+    }
+
     /**
      * Atomically release the associated lock and go to sleep on this condition
      * variable until another thread wakes it using <tt>wake()</tt>. The
@@ -41,6 +94,7 @@ public class Condition2 {
 
         //Se deshabilitan las interrupciones.
         boolean inStatus=Machine.interrupt().disable();
+        long since = (profile != null) ? profile.start() : 0;
 
         //Se libera el lock.
         conditionLock.release();
@@ -53,6 +107,9 @@ public class Condition2 {
         //Se obtiene el lock.
         conditionLock.acquire();
 
+        if (profile != null)
+            profile.acquired(true, since);
+
         //Se restauran las interrupciones.
         Machine.interrupt().restore(inStatus);
     }
@@ -78,6 +135,11 @@ public class Condition2 {
         if(thread!=null)
         {
             thread.ready();
+
+            //El thread despertado no debe seguir recibiendo
+            // donaciones; vuelven al signaler.
+            if (transferPriority)
+                waitQueue.setOwner(signaler);
         }
 
         //Se restauran los interrupts.
@@ -95,20 +157,11 @@ public class Condition2 {
         //Se deshabilitan los interrupts.
         boolean inStatus=Machine.interrupt().disable();
 
-        //Se coloca en ready cada elemento de la cola.
-        //Si no hay más elementos, nextThread() devuelve
-        // null y se sale del ciclo
-        while(true)
-        {
-            KThread thread=waitQueue.nextThread();
-            if(thread != null)
-            {
-                thread.ready();
-            }
-            else {
-                break;
-            }
-        }
+        //Se colocan en ready todos los threads de la cola
+        // en una sola pasada.
+        waitQueue.readyAll();
+        if (transferPriority)
+            waitQueue.setOwner(signaler);
 
         //Se restauran los interrupts.
         Machine.interrupt().restore(inStatus);
@@ -168,4 +221,7 @@ public class Condition2 {
 
     private Lock conditionLock;
     private ThreadQueue waitQueue;
+    private boolean transferPriority;
+    private KThread signaler = null;
+    private LockProfiler.Record profile;
 }
\ No newline at end of file
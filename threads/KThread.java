@@ -43,16 +43,21 @@ public class KThread {
 	 * create an idle thread as well.
 	 */
 	public KThread() {
+		//cada thread tiene su propia cola de join; si la donacion en
+		//join esta activada, los threads que esperan en ella le donan
+		//su prioridad (ver fork())
+		joinQueue =
+			ThreadedKernel.scheduler.newThreadQueue(transferJoinPriority);
+
 		if (currentThread != null) {
 			tcb = new TCB();
 		}
 		else {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 
-			//se crea una queue igual a la de ready para manejar los threads que hacen join
-			joinQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 			readyQueue.acquire(this);
-			joinQueue.acquire(this);
+			if (transferJoinPriority)
+				joinQueue.setOwner(this);
 
 			currentThread = this;
 			tcb = TCB.currentTCB();
@@ -148,6 +153,10 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		//los threads que hagan join donan su prioridad a este thread
+		if (transferJoinPriority)
+			joinQueue.setOwner(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -197,11 +206,10 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
-		//si un thread que hizo join es termina tiene que pasar a ready los threads que lo estaban esperando y dormirse
-		KThread thread=joinQueue.nextThread();
-		if(thread!=null){
-			thread.ready();
-		}
+		//se pasan a ready todos los threads que hicieron join a este
+		//thread y se deja de recibir donaciones
+		currentThread.joinQueue.readyAll();
+		currentThread.joinQueue.setOwner(null);
 		sleep();
 	}
 
@@ -284,21 +292,15 @@ public class KThread {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 		Lib.assertTrue(this != currentThread);
-		//se revisa si el thread esta marcado como terminado y retorna
-		if(this.status==statusFinished){
-			return;
-		}
+
 		//se deshabilitan las interrupciones
 		boolean intStatus = Machine.interrupt().disable();
 
-		//el thread que se esta ejecutando tiene que esperar al thread que hizo join y si aun no ha terminado tiene que agregarse a la cola
-		if(KThread.currentThread.isJoined);
-		else{
-			//se agreuga a queue de join el thread actual
+		//si el thread no ha terminado, el thread actual se agrega a su
+		//cola de join (donandole su prioridad) y se duerme hasta que
+		//finish() lo despierte
+		if(this.status!=statusFinished){
 			joinQueue.waitForAccess(currentThread);
-			//se marca el thread como joined, es la bandera que nos sirve para la condicion anterior
-			isJoined=true;
-			//el thread se hace sleep, lo cual bloque al thread
 			sleep();
 		}
 
@@ -584,8 +586,12 @@ public class KThread {
 	private static KThread idleThread = null;
 
 	//se crea la thread queue de join
-	private static ThreadQueue joinQueue = null;
-	//se crea variable, o estado de si un thread es join
-	private boolean isJoined=false;
+	private ThreadQueue joinQueue = null;
+	/**
+	 * Whether threads waiting in <tt>join()</tt> donate their priority to
+	 * the thread they wait for. Set from <tt>ThreadedKernel.joinDonation</tt>
+	 * before the first thread is created.
+	 */
+	static boolean transferJoinPriority = false;
 
 }
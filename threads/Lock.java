@@ -24,6 +24,32 @@ public class Lock {
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new named lock. The name identifies this lock in the
+     * contention report printed when lock profiling is enabled.
+     *
+     * @param	name	the name of this lock, or <tt>null</tt> to name it
+     *			after the code allocating it.
+     */
+    public Lock(String name) {
+	this(name, "Lock", true);
+    }
+
+    /**
+     * Allocate a new lock for a subclass that manages its holder's priority
+     * itself.
+     *
+     * @param	name		the name of this lock, or <tt>null</tt>.
+     * @param	kind		the kind reported by the lock profiler.
+     * @param	transferPriority	<tt>true</tt> if waiting threads should
+     *					donate priority to the holder.
+     */
+    protected Lock(String name, String kind, boolean transferPriority) {
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	profile = LockProfiler.register(kind, name);
     }
 
     /**
@@ -35,18 +61,24 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	long since = (profile != null) ? profile.start() : 0;
+	boolean contended = (lockHolder != null);
 
-	if (lockHolder != null) {
+	if (contended) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    granted(thread);
 	}
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profile != null)
+	    profile.acquired(contended, since);
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,12 +90,26 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if (profile != null)
+	    profile.released();
+
+	if ((lockHolder = waitQueue.nextThread()) != null) {
+	    granted(lockHolder);
 	    lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Called with interrupts disabled when this lock is given to a thread,
+     * before that thread runs again. Does nothing by default.
+     *
+     * @param	thread	the new holder of this lock.
+     */
+    protected void granted(KThread thread) {
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,6 +120,6 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    private LockProfiler.Record profile;
+    private ThreadQueue waitQueue;
 }
@@ -0,0 +1,220 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Collects contention statistics for the kernel's synchronization
+ * primitives.
+ *
+ * <p>
+ * Profiling is turned on by setting <tt>ThreadedKernel.profileLocks</tt> to
+ * <tt>true</tt> in <tt>nachos.conf</tt>. While it is off,
+ * <tt>register()</tt> returns <tt>null</tt> and each <tt>Lock</tt>,
+ * <tt>Semaphore</tt> and <tt>Condition2</tt> pays a single null test per
+ * operation. While it is on, every instance gets a <tt>Record</tt>, and a
+ * report sorted by total wait time is printed when the machine halts.
+ * Instances of the same kind with the same name share their statistics, so
+ * primitives allocated once per process or per request add up under one
+ * line of the report instead of piling up one line each.
+ *
+ * <p>
+ * All times are in simulated clock ticks.
+ */
+public class LockProfiler {
+    private LockProfiler() {
+    }
+
+    /**
+     * Turn profiling on. Only primitives allocated after this call are
+     * profiled. Called by <tt>ThreadedKernel.initialize()</tt>.
+     */
+    public static void enable() {
+	if (enabled)
+	    return;
+
+	enabled = true;
+	Machine.addStatsReporter(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Test whether profiling is on.
+     *
+     * @return	<tt>true</tt> if new primitives are being profiled.
+     */
+    public static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Allocate a record for a new synchronization primitive.
+     *
+     * @param	kind	the kind of primitive, e.g. <tt>"Lock"</tt>.
+     * @param	name	the name given to the primitive, or <tt>null</tt> to
+     *			name it after the code that allocated it.
+     * @return	the new record, or <tt>null</tt> if profiling is off.
+     */
+    public static Record register(String kind, String name) {
+	if (!enabled)
+	    return null;
+
+	if (name == null)
+	    name = allocationSite();
+
+	String key = kind + " " + name;
+	Totals total = totals.get(key);
+	if (total == null) {
+	    total = new Totals(kind, name);
+	    totals.put(key, total);
+	}
+	total.instances++;
+
+	return new Record(total);
+    }
+
+    /**
+     * Print a report of every profiled name, hottest first.
+     */
+    public static void print() {
+	ArrayList<Totals> sorted = new ArrayList<Totals>(totals.values());
+	Collections.sort(sorted, new Comparator<Totals>() {
+		public int compare(Totals a, Totals b) {
+		    if (a.totalWait != b.totalWait)
+			return a.totalWait > b.totalWait ? -1 : 1;
+		    return b.contended - a.contended;
+		}
+	    });
+
+	int instances = 0;
+	for (Totals t : sorted)
+	    instances += t.instances;
+
+	System.out.println("Lock contention (" + instances + " primitives under "
+			   + sorted.size()
+			   + " names, sorted by total wait ticks):");
+	System.out.println(String.format("%-10s %-40s %8s %8s %10s %8s %10s  %s",
+					 "kind", "name", "acquires",
+					 "contend", "wait", "maxWait",
+					 "hold", "threads"));
+	for (Totals r : sorted) {
+	    if (r.acquisitions == 0)
+		continue;
+	    System.out.println(String.format("%-10s %-40s %8d %8d %10d %8d %10d  %s",
+					     r.kind, r.name, r.acquisitions,
+					     r.contended, r.totalWait,
+					     r.maxWait, r.totalHold,
+					     r.threads));
+	}
+    }
+
+    /**
+     * Name a primitive after the first stack frame outside the
+     * synchronization classes themselves.
+     *
+     * @return	a <tt>Class.method:line</tt> description of the caller.
+     */
+    static String allocationSite() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (StackTraceElement e : trace) {
+	    String cls = e.getClassName();
+	    if (cls.equals(LockProfiler.class.getName()))
+		continue;
+	    if (e.getMethodName().equals("<init>") &&
+		(cls.equals(Lock.class.getName()) ||
+		 cls.equals(CeilingLock.class.getName()) ||
+		 cls.equals(Semaphore.class.getName()) ||
+		 cls.equals(Condition2.class.getName()) ||
+		 cls.equals(Communicator.class.getName())))
+		continue;
+
+	    return cls.substring(cls.lastIndexOf('.') + 1) + "."
+		+ e.getMethodName() + ":" + e.getLineNumber();
+	}
+
+	return "(unknown)";
+    }
+
+    /**
+     * The profiling handle of one synchronization primitive. It adds to the
+     * statistics kept for the primitive's name.
+     */
+    public static class Record {
+	Record(Totals total) {
+	    this.total = total;
+	}
+
+	/**
+	 * Return the current time, to be passed back to
+	 * <tt>acquired()</tt> once the caller gets access.
+	 *
+	 * @return	the current simulated time.
+	 */
+	public long start() {
+	    return Machine.timer().getTime();
+	}
+
+	/**
+	 * Record that the current thread was granted access.
+	 *
+	 * @param	contended	<tt>true</tt> if the thread had to wait.
+	 * @param	since		the value returned by <tt>start()</tt>
+	 *				when the thread asked for access.
+	 */
+	public void acquired(boolean contended, long since) {
+	    long now = Machine.timer().getTime();
+
+	    total.acquisitions++;
+	    if (contended) {
+		total.contended++;
+		long wait = now - since;
+		total.totalWait += wait;
+		if (wait > total.maxWait)
+		    total.maxWait = wait;
+	    }
+	    heldSince = now;
+
+	    if (total.threads.size() < maxThreadNames)
+		total.threads.add(KThread.currentThread().getName());
+	}
+
+	/**
+	 * Record that the current holder gave up access.
+	 */
+	public void released() {
+	    total.totalHold += Machine.timer().getTime() - heldSince;
+	}
+
+	private Totals total;
+	private long heldSince = 0;
+
+	private static final int maxThreadNames = 8;
+    }
+
+    /**
+     * The statistics kept for every primitive of one kind and name.
+     */
+    private static class Totals {
+	Totals(String kind, String name) {
+	    this.kind = kind;
+	    this.name = name;
+	}
+
+	private String kind, name;
+	private int instances = 0;
+	private int acquisitions = 0, contended = 0;
+	private long totalWait = 0, maxWait = 0, totalHold = 0;
+	private LinkedHashSet<String> threads = new LinkedHashSet<String>();
+    }
+
+    private static boolean enabled = false;
+    /** The statistics of every name profiled so far, by kind and name. */
+    private static LinkedHashMap<String, Totals> totals =
+	new LinkedHashMap<String, Totals>();
+}
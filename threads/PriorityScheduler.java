@@ -174,6 +174,20 @@ public class PriorityScheduler extends Scheduler {
 
 
 	//clase Priority queue, escencial para este ejercicio
+	/**
+	 * The order threads leave a queue in: higher effective priority
+	 * first, and among equal priorities the one that was queued earliest.
+	 */
+	protected static final Comparator<ThreadState> pickOrder =
+		new Comparator<ThreadState>() {
+			public int compare(ThreadState a, ThreadState b) {
+				int pa = a.getEffectivePriority(), pb = b.getEffectivePriority();
+				if (pa != pb)
+					return pb - pa;
+				return Long.compare(a.age, b.age);
+			}
+		};
+
 	protected class PriorityQueue extends ThreadQueue {
 
 		//para permitir prestamos de prioridad
@@ -227,29 +241,68 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 
+		/**
+		 * Make <tt>thread</tt> the resource holder, so that waiting threads
+		 * donate to it, without it going through <tt>acquire()</tt>.
+		 *
+		 * @param thread the new holder, or <tt>null</tt> for none.
+		 */
+		public void setOwner(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			if (this.resourceHolder != null) {
+				this.resourceHolder.release(this);
+				this.resourceHolder = null;
+			}
+			if (thread != null) {
+				final ThreadState ts = getThreadState(thread);
+				this.resourceHolder = ts;
+				ts.acquire(this);
+			}
+		}
+
+		/**
+		 * Ready every waiting thread in one pass. Queues that transfer
+		 * priority hand the resource to each thread in turn, so they keep
+		 * the default behaviour; other queues are sorted once with the
+		 * order <tt>pickNextThread()</tt> uses instead of rescanning the
+		 * list per thread.
+		 *
+		 * @return the number of threads that were readied.
+		 */
+		public int readyAll() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (this.transferPriority)
+				return super.readyAll();
+
+			final ThreadState[] waiting =
+				this.threadsWaiting.toArray(new ThreadState[this.threadsWaiting.size()]);
+			this.threadsWaiting.clear();
+
+			// pickNextThread() takes the later of two equal threads, so
+			// reverse the list before the stable sort
+			Collections.reverse(Arrays.asList(waiting));
+			Arrays.sort(waiting, pickOrder);
+
+			if (this.resourceHolder != null) {
+				this.resourceHolder.release(this);
+				this.resourceHolder = null;
+			}
+
+			for (final ThreadState ts : waiting) {
+				ts.QueuesWanted.remove(this);
+				ts.getThread().ready();
+			}
+
+			return waiting.length;
+		}
+
 		//retorna el siguiente thread a ejecutar, dependiendo de la prioridad y del age del thread, siendo esta el momento donde inserto a la lista de threads waiting
 		protected ThreadState pickNextThread() {
-			int nextPriority = priorityMinimum;
-			//ThreadState next = null;
-			ThreadState next = threadsWaiting.peek();
+			ThreadState next = null;
 			for (final ThreadState currThread : this.threadsWaiting) {
-				int currPriority = currThread.getEffectivePriority();
-				if (next == null || (currPriority > nextPriority)) {
+				if (next == null || pickOrder.compare(currThread, next) <= 0)
 					next = currThread;
-					nextPriority = currPriority;
-				} else if (currPriority == nextPriority) {
-					if (currThread.age <= next.age) {
-						//System.out.println(currThread.getThread().getName());
-						//System.out.println(currThread.age);
-						//System.out.println(next.getThread().getName());
-						//System.out.println(next.age);
-
-						//th = currThread;
-						nextPriority = currPriority;
-						next = currThread;
-					}
-				}
-
 			}
 			return next;
 		}
@@ -69,6 +69,22 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Ready every thread on the queue in FIFO order and empty the queue.
+	 *
+	 * @return	the number of threads that were readied.
+	 */
+	public int readyAll() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int count = waitQueue.size();
+	    for (KThread thread : waitQueue)
+		thread.ready();
+	    waitQueue.clear();
+
+	    return count;
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
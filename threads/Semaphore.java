@@ -28,7 +28,67 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new named semaphore. The name identifies this semaphore in
+     * the contention report printed when lock profiling is enabled.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore, or <tt>null</tt> to
+     *				name it after the code allocating it.
+     */
+    public Semaphore(int initialValue, String name) {
+	this(initialValue, name, false);
+    }
+
+    /**
+     * Allocate a new named semaphore, optionally with priority inheritance.
+     * If <i>transferPriority</i> is <tt>true</tt>, threads waiting in
+     * <tt>P()</tt> donate their priority to the thread designated with
+     * <tt>setSignaler()</tt>.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore, or <tt>null</tt> to
+     *				name it after the code allocating it.
+     * @param	transferPriority	<tt>true</tt> if waiters should donate
+     *					priority to the signaler.
+     */
+    public Semaphore(int initialValue, String name, boolean transferPriority) {
 	value = initialValue;
+	this.transferPriority = transferPriority;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	profile = LockProfiler.register("Semaphore", name);
+    }
+
+    /**
+     * Allocate a new semaphore that is never profiled. Used for the
+     * short-lived per-waiter semaphores inside <tt>Condition</tt>.
+     */
+    Semaphore(int initialValue, boolean profiled, boolean transferPriority) {
+	value = initialValue;
+	this.transferPriority = transferPriority;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	profile = profiled ? LockProfiler.register("Semaphore", null) : null;
+    }
+
+    /**
+     * Designate the thread expected to call <tt>V()</tt>. If this semaphore
+     * was created with priority inheritance, threads blocked in <tt>P()</tt>
+     * donate their priority to it, for as long as any thread is blocked.
+     * Has no effect otherwise.
+     *
+     * @param	thread	the expected signaler, or <tt>null</tt> for none.
+     */
+    public void setSignaler(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	signaler = thread;
+	if (transferPriority && numWaiting > 0)
+	    waitQueue.setOwner(thread);
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -36,15 +96,23 @@ public class Semaphore {
      */
     public void P() {
 	boolean intStatus = Machine.interrupt().disable();
+	long since = (profile != null) ? profile.start() : 0;
+	boolean contended = (value == 0);
 
-	if (value == 0) {
+	if (contended) {
 	    waitQueue.waitForAccess(KThread.currentThread());
+	    // the signaler only holds the queue while someone waits on it
+	    if (transferPriority && numWaiting++ == 0)
+		waitQueue.setOwner(signaler);
 	    KThread.sleep();
 	}
 	else {
 	    value--;
 	}
 
+	if (profile != null)
+	    profile.acquired(contended, since);
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,6 +126,10 @@ public class Semaphore {
 	KThread thread = waitQueue.nextThread();
 	if (thread != null) {
 	    thread.ready();
+	    // the woken thread must not keep receiving donations, and once
+	    // nobody waits, neither must the signaler
+	    if (transferPriority)
+		waitQueue.setOwner(--numWaiting > 0 ? signaler : null);
 	}
 	else {
 	    value++;
@@ -99,6 +171,10 @@ public class Semaphore {
     }
 
     private int value;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(false);
+    private LockProfiler.Record profile;
+    private boolean transferPriority;
+    private KThread signaler = null;
+    /** The number of threads blocked in <tt>P()</tt>, if donating. */
+    private int numWaiting = 0;
+    private ThreadQueue waitQueue;
 }
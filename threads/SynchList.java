@@ -1,35 +1,101 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is kept in a ring buffer. An unbounded queue grows the buffer as
+ * needed. A bounded queue has a fixed capacity; what happens when a producer
+ * finds it full is chosen by the overflow policy: block until a consumer
+ * makes room, drop the oldest queued element, or drop the new element.
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new, unbounded synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(0, overflowBlock);
+    }
+
+    /**
+     * Allocate a new bounded synchronized queue whose producers block while
+     * the queue is full.
+     *
+     * @param	capacity	the maximum number of queued elements.
+     */
+    public SynchList(int capacity) {
+	this(capacity, overflowBlock);
+    }
+
+    /**
+     * Allocate a new synchronized queue.
+     *
+     * @param	capacity	the maximum number of queued elements, or
+     *				<tt>0</tt> for an unbounded queue.
+     * @param	overflowPolicy	one of <tt>overflowBlock</tt>,
+     *				<tt>overflowDropOldest</tt> or
+     *				<tt>overflowDropNewest</tt>. Ignored for
+     *				unbounded queues.
+     */
+    public SynchList(int capacity, int overflowPolicy) {
+	Lib.assertTrue(capacity >= 0);
+	Lib.assertTrue(overflowPolicy >= overflowBlock &&
+		       overflowPolicy <= overflowDropNewest);
+
+	this.capacity = capacity;
+	this.overflowPolicy = overflowPolicy;
+
+	buffer = new Object[capacity > 0 ? capacity : initialSize];
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
      * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * waiting in <tt>removeFirst()</tt>, it is woken up. If the queue is full,
+     * the overflow policy decides whether this blocks or drops an element.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if <i>o</i> was queued, <tt>false</tt> if it was
+     *		dropped.
      */
-    public void add(Object o) {
+    public boolean add(Object o) {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
-	list.add(o);
+	boolean added = put(o);
 	listEmpty.wake();
 	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Add every element of the specified collection to the end of the queue,
+     * in iteration order, holding the lock across the whole batch except while
+     * blocked on a full queue. All waiting consumers are woken.
+     *
+     * @param	c	the objects to add. Must not contain <tt>null</tt>.
+     * @return	the number of objects queued (not dropped).
+     */
+    public int addAll(Collection<?> c) {
+	int added = 0;
+
+	lock.acquire();
+	for (Object o : c) {
+	    Lib.assertTrue(o != null);
+	    if (put(o))
+		added++;
+	}
+	listEmpty.wakeAll();
+	lock.release();
+
+	return added;
     }
 
     /**
@@ -42,14 +108,153 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	o = take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most about
+     * <i>timeoutTicks</i> clock ticks for one to arrive.
+     *
+     * @param	timeoutTicks	the minimum number of clock ticks to wait
+     *				before giving up.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was still empty when the timeout
+     *		expired.
+     */
+    public Object removeFirst(long timeoutTicks) {
+	Lib.assertTrue(timeoutTicks >= 0);
+
+	long deadline = Machine.timer().getTime() + timeoutTicks;
+	Object o = null;
+
+	lock.acquire();
+	while (count == 0) {
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0)
+		break;
+	    listEmpty.sleep(remaining);
+	}
+	if (count > 0)
+	    o = take();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue without
+     * blocking, appending them to <i>c</i> in queue order.
+     *
+     * @param	c	the collection receiving the removed objects.
+     * @param	max	the maximum number of objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	Lib.assertTrue(max >= 0);
+
+	lock.acquire();
+	int n = Math.min(max, count);
+	for (int i=0; i<n; i++)
+	    c.add(take());
 	lock.release();
 
+	return n;
+    }
+
+    /**
+     * Designate the thread that normally adds to this queue. Threads blocked
+     * in <tt>removeFirst()</tt> afterwards donate their priority to it, so a
+     * high-priority consumer is not stuck behind a low-priority producer.
+     *
+     * @param	thread	the producer thread, or <tt>null</tt> for none.
+     */
+    public void setProducer(KThread thread) {
+	lock.acquire();
+	listEmpty.setSignaler(thread);
+	lock.release();
+    }
+
+    /**
+     * Return the largest number of elements this queue has held at once.
+     *
+     * @return	the high-water mark of this queue.
+     */
+    public int getHighWaterMark() {
+	return highWaterMark;
+    }
+
+    /**
+     * Return the number of elements dropped by the overflow policy.
+     *
+     * @return	the number of dropped elements.
+     */
+    public int getDropped() {
+	return dropped;
+    }
+
+    /**
+     * Queue <i>o</i>, applying the overflow policy. The lock must be held.
+     */
+    private boolean put(Object o) {
+	if (capacity == 0) {
+	    if (count == buffer.length)
+		grow();
+	}
+	else if (count == capacity) {
+	    switch (overflowPolicy) {
+	    case overflowDropNewest:
+		dropped++;
+		return false;
+	    case overflowDropOldest:
+		take();
+		dropped++;
+		break;
+	    default:
+		// consumers may be asleep on an earlier part of this batch
+		listEmpty.wakeAll();
+		while (count == capacity)
+		    listFull.sleep();
+		break;
+	    }
+	}
+
+	buffer[(head + count) % buffer.length] = o;
+	count++;
+	if (count > highWaterMark)
+	    highWaterMark = count;
+
+	return true;
+    }
+
+    /**
+     * Remove the element at the front of the queue. The lock must be held and
+     * the queue must be non-empty.
+     */
+    private Object take() {
+	Object o = buffer[head];
+	buffer[head] = null;
+	head = (head + 1) % buffer.length;
+	count--;
+
+	if (capacity > 0 && overflowPolicy == overflowBlock)
+	    listFull.wake();
+
 	return o;
     }
 
+    private void grow() {
+	Object[] larger = new Object[buffer.length * 2];
+	for (int i=0; i<count; i++)
+	    larger[i] = buffer[(head + i) % buffer.length];
+	buffer = larger;
+	head = 0;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -79,10 +284,35 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	SynchList bounded = new SynchList(2, overflowDropOldest);
+	for (int i=0; i<3; i++)
+	    bounded.add(new Integer(i));
+	java.util.LinkedList<Object> out = new java.util.LinkedList<Object>();
+	Lib.assertTrue(bounded.drainTo(out, 10) == 2);
+	Lib.assertTrue(((Integer) out.getFirst()).intValue() == 1);
+	Lib.assertTrue(bounded.getDropped() == 1 && bounded.getHighWaterMark() == 2);
+	Lib.assertTrue(bounded.removeFirst(1000) == null);
     }
 
-    private LinkedList<Object> list;
+    /** Producers wait for room when a bounded queue is full. */
+    public static final int overflowBlock = 0;
+    /** The oldest queued element is discarded to make room. */
+    public static final int overflowDropOldest = 1;
+    /** The element being added is discarded. */
+    public static final int overflowDropNewest = 2;
+
+    private static final int initialSize = 16;
+
+    private Object[] buffer;
+    private int head = 0, count = 0;
+    private int capacity;
+    private int overflowPolicy;
+    private int highWaterMark = 0;
+    private int dropped = 0;
+
     private Lock lock;
     private Condition listEmpty;
+    private Condition listFull;
 }
 
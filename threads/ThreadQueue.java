@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,49 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Designate the thread expected to grant access next, without that thread
+     * having received access itself. For example, a semaphore can name the
+     * thread that will call <tt>V()</tt>. If this queue transfers priority,
+     * waiting threads donate their priority to the designated thread until
+     * another thread receives access or another owner is designated.
+     *
+     * <p>
+     * Schedulers without priority donation may ignore this; the default
+     * implementation does nothing.
+     *
+     * @param	thread	the thread expected to grant access, or <tt>null</tt>
+     *			to stop donating to any thread.
+     */
+    public void setOwner(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Move every thread waiting on this queue to the ready queue, as if
+     * <tt>nextThread()</tt> were called repeatedly and each returned thread
+     * were passed to <tt>KThread.ready()</tt>. Threads are readied in the
+     * order <tt>nextThread()</tt> would have returned them.
+     *
+     * <p>
+     * Schedulers should override this to drain the queue in a single pass;
+     * this default implementation simply loops over <tt>nextThread()</tt>.
+     *
+     * @return	the number of threads that were readied.
+     */
+    public int readyAll() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	int count = 0;
+	KThread thread;
+	while ((thread = nextThread()) != null) {
+	    thread.ready();
+	    count++;
+	}
+
+	return count;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -22,6 +22,14 @@ public class ThreadedKernel extends Kernel {
 	String schedulerName = Config.getString("ThreadedKernel.scheduler");
 	scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+	// optionally profile lock and condition contention
+	if (Config.getBoolean("ThreadedKernel.profileLocks", false))
+	    LockProfiler.enable();
+
+	// optionally let joining threads donate priority to the joined thread
+	KThread.transferJoinPriority =
+	    Config.getBoolean("ThreadedKernel.joinDonation", false);
+
 	// set fileSystem
 	String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 	if (fileSystemName != null)
@@ -0,0 +1,262 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Hands out the physical page frames of the machine to user processes.
+ *
+ * <p>
+ * A bitmap, one bit per frame, records which frames are free, and is the
+ * only authority on it. Freed frames are also pushed on a stack, so that the
+ * common case of freeing a frame and soon allocating one takes constant time
+ * and reuses a recently used frame. When the stack is empty, the bitmap is
+ * scanned a word at a time from a next-fit cursor, so successive scans
+ * spread out over memory instead of starting over at frame 0.
+ *
+ * <p>
+ * Every operation holds a <tt>Lock</tt>, so processes may allocate and free
+ * frames concurrently.
+ *
+ * <p>
+ * The bitmap is saved with machine snapshots, so that a restored machine
+ * does not hand out the frames its processes hold.
+ */
+public class FrameAllocator implements Snapshot.Participant {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param	numFrames	the number of physical page frames.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames > 0);
+
+	this.numFrames = numFrames;
+	numFree = numFrames;
+
+	freeMap = new long[(numFrames+63) / 64];
+	for (int frame=0; frame<numFrames; frame++)
+	    freeMap[frame/64] |= 1L << (frame%64);
+
+	freeStack = new int[numFrames];
+    }
+
+    /**
+     * Return the number of frames managed by this allocator.
+     *
+     * @return	the number of physical page frames.
+     */
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * Return the number of frames not allocated.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return	the frame's physical page number, or -1 if no frame is free.
+     */
+    public int allocate() {
+	lock.acquire();
+
+	int frame = (numFree > 0) ? take() : -1;
+
+	lock.release();
+	return frame;
+    }
+
+    /**
+     * Allocate <i>count</i> frames at once. Either all of them are allocated
+     * or none are.
+     *
+     * @param	frames	the array to store the physical page numbers in.
+     * @param	count	the number of frames to allocate.
+     * @return	<tt>true</tt> if the frames were allocated, or <tt>false</tt>
+     *		if fewer than <i>count</i> frames are free.
+     */
+    public boolean allocate(int[] frames, int count) {
+	Lib.assertTrue(count >= 0 && count <= frames.length);
+
+	lock.acquire();
+
+	boolean enough = (numFree >= count);
+	if (enough) {
+	    for (int i=0; i<count; i++)
+		frames[i] = take();
+	}
+
+	lock.release();
+	return enough;
+    }
+
+    /**
+     * Free one frame, which must be allocated.
+     *
+     * @param	frame	the physical page number of the frame.
+     */
+    public void free(int frame) {
+	lock.acquire();
+
+	give(frame);
+
+	lock.release();
+    }
+
+    /**
+     * Free the first <i>count</i> frames in <i>frames</i>, which must all be
+     * allocated.
+     *
+     * @param	frames	the physical page numbers of the frames.
+     * @param	count	the number of frames to free.
+     */
+    public void free(int[] frames, int count) {
+	Lib.assertTrue(count >= 0 && count <= frames.length);
+
+	lock.acquire();
+
+	for (int i=0; i<count; i++)
+	    give(frames[i]);
+
+	lock.release();
+    }
+
+    public String getName() {
+	return "FrameAllocator";
+    }
+
+    /**
+     * Write the bitmap to a snapshot.
+     *
+     * @param	out	the stream to write to.
+     */
+    public void save(DataOutput out) throws IOException {
+	lock.acquire();
+
+	out.writeInt(numFrames);
+	for (int i=0; i<freeMap.length; i++)
+	    out.writeLong(freeMap[i]);
+
+	lock.release();
+    }
+
+    /**
+     * Replace the bitmap with one saved in a snapshot. The free stack is
+     * emptied, since the frames on it may no longer be free.
+     *
+     * @param	in	the stream to read from.
+     */
+    public void restore(DataInput in) throws IOException {
+	lock.acquire();
+
+	Lib.assertTrue(in.readInt() == numFrames,
+		       "snapshot has a different number of frames");
+
+	numFree = 0;
+	for (int i=0; i<freeMap.length; i++) {
+	    freeMap[i] = in.readLong();
+	    numFree += Long.bitCount(freeMap[i]);
+	}
+	stackSize = 0;
+	cursor = 0;
+
+	lock.release();
+    }
+
+    /**
+     * Remove a free frame from the bitmap. The caller must hold the lock,
+     * and there must be a free frame.
+     */
+    private int take() {
+	int frame;
+
+	if (stackSize > 0) {
+	    frame = freeStack[--stackSize];
+	}
+	else {
+	    // next fit: look for a set bit starting at the cursor's word
+	    int word = cursor;
+	    while (freeMap[word] == 0)
+		word = (word+1) % freeMap.length;
+
+	    frame = word*64 + Long.numberOfTrailingZeros(freeMap[word]);
+	    cursor = word;
+	}
+
+	Lib.assertTrue((freeMap[frame/64] & (1L << (frame%64))) != 0);
+	freeMap[frame/64] &= ~(1L << (frame%64));
+	numFree--;
+
+	return frame;
+    }
+
+    /**
+     * Return a frame to the bitmap and the free stack. The caller must hold
+     * the lock.
+     */
+    private void give(int frame) {
+	Lib.assertTrue(frame >= 0 && frame < numFrames);
+	Lib.assertTrue((freeMap[frame/64] & (1L << (frame%64))) == 0,
+		       "frame " + frame + " freed twice");
+
+	freeMap[frame/64] |= 1L << (frame%64);
+	numFree++;
+
+	// the stack only ever holds free frames, so it cannot overflow
+	freeStack[stackSize++] = frame;
+    }
+
+    /**
+     * Test that frames are handed out once each, and can be allocated again
+     * after they are freed.
+     */
+    public static void selfTest() {
+	FrameAllocator allocator = new FrameAllocator(130);
+	int[] frames = new int[130];
+
+	Lib.assertTrue(allocator.allocate(frames, 130));
+	Lib.assertTrue(allocator.getNumFree() == 0);
+	Lib.assertTrue(allocator.allocate() == -1);
+	Lib.assertTrue(!allocator.allocate(frames, 1));
+
+	boolean[] seen = new boolean[130];
+	for (int i=0; i<130; i++) {
+	    Lib.assertTrue(!seen[frames[i]]);
+	    seen[frames[i]] = true;
+	}
+
+	allocator.free(frames[7]);
+	Lib.assertTrue(allocator.allocate() == frames[7]);
+
+	allocator.free(frames, 130);
+	Lib.assertTrue(allocator.getNumFree() == 130);
+	Lib.assertTrue(allocator.allocate(frames, 100));
+	allocator.free(frames, 100);
+	Lib.assertTrue(allocator.getNumFree() == 130);
+    }
+
+    private int numFrames, numFree;
+
+    /** One bit per frame, set if the frame is free. */
+    private long[] freeMap;
+    /** The word of <tt>freeMap</tt> the next scan starts at. */
+    private int cursor = 0;
+
+    /** Frames freed since they were last allocated. */
+    private int[] freeStack;
+    private int stackSize = 0;
+
+    private Lock lock = new Lock();
+}
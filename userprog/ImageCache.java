@@ -0,0 +1,300 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps recently run executables in kernel memory, so that running one
+ * again does not read it from the file system.
+ *
+ * <p>
+ * The first time an executable is opened, its headers are parsed by a
+ * <tt>Coff</tt> as usual, and then every initialized page of every section is
+ * read into the cache, through a frame borrowed from the frame allocator,
+ * and the file is closed. Later opens of the same file return a <tt>Coff</tt>
+ * built from the cached headers, whose sections copy pages out of the cache:
+ * no file is opened and nothing is read. Uninitialized sections take no
+ * space.
+ *
+ * <p>
+ * An image is used only while the file's stamp in the open file table is
+ * the one it was read with, so an executable that is rewritten, or removed
+ * and created again, is read afresh. Changes made to the test directory
+ * from outside Nachos are not noticed. A file that is open when it is
+ * executed is read without caching it, since it may still change.
+ *
+ * <p>
+ * An executable is read without holding the cache's lock, so processes
+ * starting other programs, or programs already in the cache, do not wait
+ * for it. Two processes that start the same program at once may both read
+ * it; only one copy is kept.
+ *
+ * <p>
+ * The cache holds at most <tt>UserKernel.imageCacheSize</tt> bytes of pages
+ * (262144 by default; 0 turns the cache off), and drops the least recently
+ * run images to stay under it. Processes that are running an image that is
+ * dropped keep it until they exit. While the processor is profiling, the
+ * cache is off, since the profiler tells programs apart by the
+ * <tt>Coff</tt> objects that read them.
+ */
+public class ImageCache {
+    /**
+     * Allocate a new, empty image cache.
+     *
+     * @param	budget	the most bytes of pages to keep, or 0 to keep none.
+     */
+    public ImageCache(int budget) {
+	Lib.assertTrue(budget >= 0);
+
+	this.budget = budget;
+    }
+
+    /**
+     * Open an executable, from the cache if it is there.
+     *
+     * @param	name	the name of the executable file.
+     * @return	a loader for the executable, or <tt>null</tt> if the file
+     *		could not be opened. The loader must be closed when it is no
+     *		longer needed.
+     * @exception	EOFException	if the executable is corrupt.
+     */
+    public Coff open(String name) throws EOFException {
+	if (budget == 0 || Machine.processor().isProfiling())
+	    return openFile(name);
+
+	cacheLock.acquire();
+
+	int stamp = UserKernel.files.getStamp(name);
+
+	Image image = images.get(name);
+	if (image != null && image.stamp == stamp) {
+	    numHits++;
+	    cacheLock.release();
+	    return new CachedCoff(image);
+	}
+
+	if (image != null) {
+	    images.remove(name);
+	    size -= image.size;
+	}
+
+	cacheLock.release();
+
+	// read without the lock, so that other processes can start meanwhile
+	Coff coff = openFile(name);
+	if (coff == null || stamp == -1)
+	    return coff;
+
+	image = read(name, stamp, coff);
+	if (image == null || image.size > budget)
+	    return coff;
+
+	coff.close();
+
+	cacheLock.acquire();
+
+	numMisses++;
+
+	// keep the image unless the file changed while it was read, or another
+	// process read it first
+	Image current = images.get(name);
+	if (UserKernel.files.getStamp(name) == stamp &&
+	    (current == null || current.stamp != stamp)) {
+	    if (current != null)
+		size -= current.size;
+	    images.put(name, image);
+	    size += image.size;
+	    evict();
+	}
+
+	cacheLock.release();
+
+	return new CachedCoff(image);
+    }
+
+    /**
+     * Open an executable in the file system. Its buffered data, if it is
+     * open, is written first.
+     */
+    private Coff openFile(String name) throws EOFException {
+	UserKernel.files.flush(name);
+
+	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	if (executable == null)
+	    return null;
+
+	try {
+	    return new Coff(executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Read the headers and initialized pages of an executable. Returns
+     * <tt>null</tt> if no frame is free to read through.
+     */
+    private Image read(String name, int stamp, Coff coff) {
+	int frame = UserKernel.frames.allocate();
+	if (frame == -1)
+	    return null;
+
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+
+	Image image = new Image(name, stamp, coff);
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (!section.isInitialzed())
+		continue;
+
+	    byte[][] pages = new byte[section.getLength()][];
+	    for (int spn=0; spn<pages.length; spn++) {
+		section.loadPage(spn, frame);
+
+		pages[spn] = new byte[pageSize];
+		memory.read((long) frame*pageSize, pages[spn], 0, pageSize);
+		image.size += pageSize;
+	    }
+	    image.pages[s] = pages;
+	}
+
+	UserKernel.frames.free(frame);
+	return image;
+    }
+
+    /**
+     * Drop the least recently run images until the cache is within its
+     * budget. The caller must hold <tt>cacheLock</tt>.
+     */
+    private void evict() {
+	Iterator<Image> i = images.values().iterator();
+	while (size > budget) {
+	    Image image = i.next();
+	    i.remove();
+	    size -= image.size;
+
+	    Lib.debug(dbgImages, "dropped " + image.name + " from image cache");
+	}
+    }
+
+    /**
+     * Print how often executables were found in the cache, if they ever
+     * were.
+     */
+    public void print() {
+	if (numHits > 0) {
+	    System.out.println("Images: " + numHits + " cached, " + numMisses
+			       + " read, " + size + " bytes in cache");
+	}
+    }
+
+    /**
+     * The headers and page contents of an executable.
+     */
+    private static class Image {
+	Image(String name, int stamp, Coff coff) {
+	    this.name = name;
+	    this.stamp = stamp;
+
+	    entryPoint = coff.getEntryPoint();
+
+	    int numSections = coff.getNumSections();
+	    sectionNames = new String[numSections];
+	    executable = new boolean[numSections];
+	    readOnly = new boolean[numSections];
+	    numPages = new int[numSections];
+	    firstVPN = new int[numSections];
+	    pages = new byte[numSections][][];
+
+	    for (int s=0; s<numSections; s++) {
+		CoffSection section = coff.getSection(s);
+		sectionNames[s] = section.getName();
+		executable[s] = section.isExecutable();
+		readOnly[s] = section.isReadOnly();
+		numPages[s] = section.getLength();
+		firstVPN[s] = section.getFirstVPN();
+	    }
+	}
+
+	String name;
+	int stamp;
+	int entryPoint;
+
+	String[] sectionNames;
+	boolean[] executable, readOnly;
+	int[] numPages, firstVPN;
+
+	/**
+	 * The pages of each section, or <tt>null</tt> for an uninitialized
+	 * section.
+	 */
+	byte[][][] pages;
+	/** The number of bytes in <tt>pages</tt>. */
+	int size = 0;
+    }
+
+    /**
+     * A loader for a cached image. It never touches the file system.
+     */
+    private static class CachedCoff extends Coff {
+	CachedCoff(Image image) {
+	    entryPoint = image.entryPoint;
+
+	    sections = new CoffSection[image.sectionNames.length];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = new CachedSection(this, image, s);
+	}
+
+	public int getEntryPoint() {
+	    return entryPoint;
+	}
+
+	public void close() {
+	    sections = null;
+	}
+    }
+
+    /**
+     * A section of a cached image.
+     */
+    private static class CachedSection extends CoffSection {
+	CachedSection(Coff coff, Image image, int s) {
+	    super(coff, image.sectionNames[s], image.executable[s],
+		  image.readOnly[s], image.numPages[s], image.firstVPN[s]);
+
+	    pages = image.pages[s];
+	    initialized = (pages != null);
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn >= 0 && spn < numPages);
+
+	    PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+	    memory.write((long) ppn*pageSize,
+			 (pages != null) ? pages[spn] : zeroPage, 0, pageSize);
+	}
+
+	private byte[][] pages;
+    }
+
+    private int budget;
+    private int size = 0;
+    private int numHits = 0, numMisses = 0;
+
+    /** The cached images, least recently run first. */
+    private LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+    private Lock cacheLock = new Lock();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final byte[] zeroPage = new byte[pageSize];
+
+    private static final char dbgImages = 'x';
+}
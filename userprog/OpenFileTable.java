@@ -0,0 +1,500 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel's table of open files, shared by every user process.
+ *
+ * <p>
+ * A file is opened in the file system once, however many descriptors refer
+ * to it, and closed when the last of them is closed. Each descriptor keeps
+ * its own position, and reads and writes the shared file at that position.
+ * A file that is unlinked while it is open stays in the table, and cannot be
+ * opened again, until its last descriptor is closed; it is then removed from
+ * the file system.
+ *
+ * <p>
+ * Each shared file can also have a buffer of <tt>UserKernel.fileBufferSize</tt>
+ * bytes (4096 by default; 0 turns buffering off). Reads fill the whole buffer
+ * at once, and small writes that follow one another are collected in it and
+ * written in one piece when the buffer moves elsewhere, when the file is
+ * closed, or when the machine halts. Every descriptor of a file goes through
+ * the same buffer, so they all see the same bytes. Since every read or write
+ * of the file system takes the same time whatever its size, programs such as
+ * <tt>cat</tt> and <tt>cp</tt> that move a file in small pieces wait for the
+ * file system a few times a buffer instead of once a call.
+ *
+ * <p>
+ * The table also gives each file a stamp, which changes whenever the file is
+ * created, truncated, unlinked, or closed after being written, so that
+ * copies of a file's contents kept elsewhere in the kernel can tell when
+ * they are out of date.
+ */
+public class OpenFileTable {
+    /**
+     * Allocate a new, empty open file table.
+     *
+     * @param	bufferSize	the size of each file's buffer in bytes, or 0
+     *				for no buffering.
+     */
+    public OpenFileTable(int bufferSize) {
+	Lib.assertTrue(bufferSize >= 0);
+
+	this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Open a file, and return a new descriptor for it, positioned at the
+     * start of the file. The descriptor must be closed when it is no longer
+     * needed.
+     *
+     * @param	name	the name of the file.
+     * @param	create	<tt>true</tt> to create the file if it does not exist,
+     *			and truncate it if it does.
+     * @return	the new descriptor, or <tt>null</tt> if the file could not be
+     *		opened, or has been unlinked but is still open.
+     */
+    public OpenFile open(String name, boolean create) {
+	tableLock.acquire();
+
+	SharedFile shared = files.get(name);
+	if (shared == null) {
+	    OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+	    if (file != null) {
+		shared = new SharedFile(name, file);
+		files.put(name, shared);
+	    }
+	}
+	else if (shared.unlinked) {
+	    shared = null;
+	}
+	else if (create) {
+	    shared.truncate();
+	}
+
+	if (shared != null && create)
+	    changed(name);
+
+	OpenFile descriptor = null;
+	if (shared != null) {
+	    shared.references++;
+	    descriptor = new Descriptor(shared);
+	}
+
+	tableLock.release();
+	return descriptor;
+    }
+
+    /**
+     * Remove a file from the file system. If it is open, it is removed when
+     * its last descriptor is closed.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file was removed, or will be.
+     */
+    public boolean unlink(String name) {
+	tableLock.acquire();
+
+	boolean removed;
+	SharedFile shared = files.get(name);
+	if (shared != null) {
+	    removed = !shared.unlinked;
+	    shared.unlinked = true;
+	}
+	else {
+	    removed = ThreadedKernel.fileSystem.remove(name);
+	}
+
+	if (removed)
+	    changed(name);
+
+	tableLock.release();
+	return removed;
+    }
+
+    /**
+     * Return the stamp of a file. The stamp changes every time the file is
+     * changed through this table, and is 0 if it never was. A file that is
+     * open may be written at any time, so it has no stamp.
+     *
+     * @param	name	the name of the file.
+     * @return	the stamp, or -1 if the file is open.
+     */
+    public int getStamp(String name) {
+	tableLock.acquire();
+
+	int stamp = -1;
+	if (!files.containsKey(name)) {
+	    Integer changed = stamps.get(name);
+	    stamp = (changed == null) ? 0 : changed;
+	}
+
+	tableLock.release();
+	return stamp;
+    }
+
+    /**
+     * Write the buffered data of a file to the file system, if it is open,
+     * so that it can be read without going through this table.
+     *
+     * @param	name	the name of the file.
+     */
+    public void flush(String name) {
+	tableLock.acquire();
+
+	SharedFile shared = files.get(name);
+	if (shared != null) {
+	    shared.lock.acquire();
+	    shared.flush();
+	    shared.lock.release();
+	}
+
+	tableLock.release();
+    }
+
+    /**
+     * Write the buffered data of every open file to the file system. Called
+     * before the machine halts.
+     */
+    public void flush() {
+	tableLock.acquire();
+
+	for (SharedFile shared : files.values()) {
+	    shared.lock.acquire();
+	    shared.flush();
+	    shared.lock.release();
+	}
+
+	tableLock.release();
+    }
+
+    /**
+     * Drop a reference to a shared file, and close it if that was the last.
+     */
+    private void release(SharedFile shared) {
+	tableLock.acquire();
+
+	Lib.assertTrue(shared.references > 0);
+	if (--shared.references == 0) {
+	    shared.lock.acquire();
+	    shared.flush();
+	    shared.lock.release();
+
+	    shared.file.close();
+	    files.remove(shared.name);
+
+	    if (shared.unlinked)
+		ThreadedKernel.fileSystem.remove(shared.name);
+	    if (shared.written || shared.unlinked)
+		changed(shared.name);
+	}
+
+	tableLock.release();
+    }
+
+    /**
+     * Give a file a new stamp. The caller must hold <tt>tableLock</tt>.
+     */
+    private void changed(String name) {
+	stamps.put(name, ++lastStamp);
+    }
+
+    /**
+     * Test that descriptors of one file share its contents, and that files
+     * truncated or unlinked while open behave as they should.
+     */
+    public static void selfTest() {
+	// a small buffer, so the test moves it around
+	OpenFileTable table = new OpenFileTable(16);
+	String name = "openfiletable.test";
+	ThreadedKernel.fileSystem.remove(name);
+
+	byte[] data = new byte[40];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) i;
+	byte[] buf = new byte[40];
+
+	// what one descriptor writes, another reads
+	OpenFile writer = table.open(name, true);
+	OpenFile reader = table.open(name, false);
+	Lib.assertTrue(writer != null && reader != null);
+	for (int i=0; i<data.length; i+=8)
+	    Lib.assertTrue(writer.write(data, i, 8) == 8);
+	Lib.assertTrue(reader.read(buf, 0, 12) == 12);
+	Lib.assertTrue(reader.read(buf, 12, 28) == 28);
+	for (int i=0; i<data.length; i++)
+	    Lib.assertTrue(buf[i] == data[i]);
+	Lib.assertTrue(table.getStamp(name) == -1);
+
+	writer.close();
+	reader.close();
+	Lib.assertTrue(table.getStamp(name) > 0);
+
+	// a read across the end of the file stops there
+	reader = table.open(name, false);
+	Lib.assertTrue(reader.read(0, buf, 0, 12) == 12);
+	Lib.assertTrue(reader.read(32, buf, 0, 12) == 8);
+	Lib.assertTrue(buf[0] == data[32] && buf[7] == data[39]);
+	Lib.assertTrue(reader.read(40, buf, 0, 12) == 0);
+
+	// creating the file again empties it for every descriptor
+	writer = table.open(name, true);
+	Lib.assertTrue(writer != null);
+	Lib.assertTrue(reader.length() == 0);
+	Lib.assertTrue(reader.read(0, buf, 0, 12) == 0);
+	Lib.assertTrue(writer.write(data, 0, 4) == 4);
+	Lib.assertTrue(reader.read(0, buf, 0, 12) == 4);
+
+	// an unlinked file stays readable until its last descriptor closes
+	Lib.assertTrue(table.unlink(name));
+	Lib.assertTrue(!table.unlink(name));
+	Lib.assertTrue(table.open(name, false) == null);
+	Lib.assertTrue(reader.read(0, buf, 0, 12) == 4);
+
+	writer.close();
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	Lib.assertTrue(file != null);
+	file.close();
+	reader.close();
+	Lib.assertTrue(ThreadedKernel.fileSystem.open(name, false) == null);
+	Lib.assertTrue(table.getStamp(name) > 0);
+    }
+
+    /**
+     * A file opened in the file system, and the descriptors referring to it.
+     */
+    private class SharedFile {
+	SharedFile(String name, OpenFile file) {
+	    this.name = name;
+	    this.file = file;
+
+	    if (bufferSize > 0)
+		buffer = new byte[bufferSize];
+	}
+
+	int read(int pos, byte[] buf, int offset, int length) {
+	    if (buffer == null)
+		return file.read(pos, buf, offset, length);
+
+	    lock.acquire();
+
+	    int amount = 0;
+	    while (amount < length) {
+		int start = pos + amount;
+
+		if (start < bufferStart || start >= bufferStart+bufferLength) {
+		    if (bufferAtEnd && start == bufferStart+bufferLength)
+			break;
+
+		    flush();
+
+		    if (length-amount >= buffer.length) {
+			// no point copying; read the rest straight through
+			bufferLength = 0;
+			bufferAtEnd = false;
+			int read = file.read(start, buf, offset+amount,
+					     length-amount);
+			if (read != -1)
+			    amount += read;
+			else if (amount == 0)
+			    amount = -1;
+			break;
+		    }
+
+		    int read = file.read(start, buffer, 0, buffer.length);
+		    if (read == -1) {
+			bufferLength = 0;
+			bufferAtEnd = false;
+			if (amount == 0)
+			    amount = -1;
+			break;
+		    }
+
+		    bufferStart = start;
+		    bufferLength = read;
+		    // a short read only happens at the end of the file
+		    bufferAtEnd = (read < buffer.length);
+		    if (read == 0)
+			break;
+		}
+
+		int count = Math.min(length-amount,
+				     bufferStart+bufferLength-start);
+		System.arraycopy(buffer, start-bufferStart, buf, offset+amount,
+				 count);
+		amount += count;
+	    }
+
+	    lock.release();
+	    return amount;
+	}
+
+	int write(int pos, byte[] buf, int offset, int length) {
+	    if (buffer == null) {
+		written = true;
+		return file.write(pos, buf, offset, length);
+	    }
+
+	    lock.acquire();
+
+	    written = true;
+
+	    int amount;
+	    if (length >= buffer.length) {
+		// no point copying; write it straight through
+		flush();
+		bufferLength = 0;
+		bufferAtEnd = false;
+		amount = file.write(pos, buf, offset, length);
+	    }
+	    else {
+		// extend the buffer if the write starts inside it or right
+		// after it, and fits; otherwise start over at this write
+		if (pos < bufferStart || pos > bufferStart+bufferLength ||
+		    pos+length > bufferStart+buffer.length) {
+		    flush();
+		    bufferStart = pos;
+		    bufferLength = 0;
+		    bufferAtEnd = false;
+		}
+
+		int first = pos - bufferStart;
+		System.arraycopy(buf, offset, buffer, first, length);
+		bufferLength = Math.max(bufferLength, first+length);
+
+		if (dirtyStart == dirtyEnd) {
+		    dirtyStart = first;
+		    dirtyEnd = first+length;
+		}
+		else {
+		    dirtyStart = Math.min(dirtyStart, first);
+		    dirtyEnd = Math.max(dirtyEnd, first+length);
+		}
+		amount = length;
+	    }
+
+	    lock.release();
+	    return amount;
+	}
+
+	int length() {
+	    lock.acquire();
+
+	    int length = file.length();
+	    if (buffer != null && length != -1)
+		length = Math.max(length, bufferStart+bufferLength);
+
+	    lock.release();
+	    return length;
+	}
+
+	/**
+	 * Write the dirty part of the buffer. The caller must hold
+	 * <tt>lock</tt>.
+	 */
+	void flush() {
+	    if (dirtyStart == dirtyEnd)
+		return;
+
+	    int count = dirtyEnd - dirtyStart;
+	    if (file.write(bufferStart+dirtyStart, buffer, dirtyStart,
+			   count) != count)
+		Lib.debug(dbgFiles, "lost buffered write to " + name);
+
+	    dirtyStart = dirtyEnd = 0;
+	}
+
+	/**
+	 * Empty the file, and the buffer. The caller must hold
+	 * <tt>tableLock</tt>.
+	 */
+	void truncate() {
+	    lock.acquire();
+
+	    dirtyStart = dirtyEnd = 0;
+	    bufferStart = bufferLength = 0;
+	    bufferAtEnd = false;
+
+	    OpenFile truncated = ThreadedKernel.fileSystem.open(name, true);
+	    if (truncated != null)
+		truncated.close();
+
+	    lock.release();
+	}
+
+	String name;
+	OpenFile file;
+	int references = 0;
+	boolean unlinked = false;
+	/** Set once the file is written through any descriptor. */
+	boolean written = false;
+
+	/** Held while the buffer is used. */
+	Lock lock = new Lock();
+	byte[] buffer = null;
+	/** The bytes of the file the buffer holds. */
+	int bufferStart = 0, bufferLength = 0;
+	/** Set if the file ends where the buffer's bytes end. */
+	boolean bufferAtEnd = false;
+	/** The part of the buffer not yet written to the file. */
+	int dirtyStart = 0, dirtyEnd = 0;
+    }
+
+    /**
+     * A descriptor: a position in a shared file.
+     */
+    private class Descriptor extends OpenFileWithPosition {
+	Descriptor(SharedFile shared) {
+	    super(ThreadedKernel.fileSystem, shared.name);
+
+	    this.shared = shared;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (shared == null || pos < 0 || length < 0)
+		return -1;
+
+	    return shared.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (shared == null || pos < 0 || length < 0)
+		return -1;
+
+	    return shared.write(pos, buf, offset, length);
+	}
+
+	public int length() {
+	    if (shared == null)
+		return -1;
+
+	    return shared.length();
+	}
+
+	public void close() {
+	    if (shared != null) {
+		release(shared);
+		shared = null;
+	    }
+	}
+
+	private SharedFile shared;
+    }
+
+    private int bufferSize;
+
+    /** Every open file, by name. */
+    private HashMap<String, SharedFile> files =
+	new HashMap<String, SharedFile>();
+    private Lock tableLock = new Lock();
+
+    /** The stamp of every file changed so far, by name. */
+    private HashMap<String, Integer> stamps = new HashMap<String, Integer>();
+    private int lastStamp = 0;
+
+    private static final char dbgFiles = 'f';
+}
@@ -0,0 +1,250 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Samples the call stacks of user programs on timer interrupts, and prints
+ * them in folded form when the machine halts.
+ *
+ * <p>
+ * Sampling is turned on by setting <tt>UserKernel.sampleStacks</tt> to
+ * <tt>true</tt>. Every <tt>UserKernel.sampleInterval</tt> timer interrupts,
+ * the stack of the current user thread is walked and counted. Each line of
+ * the report is a process, then its frames from outermost to innermost,
+ * separated by semicolons, then the number of samples, which is the input
+ * expected by the usual flame graph scripts.
+ *
+ * <p>
+ * User programs have no frame pointers or unwind tables, so frames are
+ * found the way a debugger does without symbols: scan back from the PC to
+ * the <tt>addiu $sp,$sp,-n</tt> that allocated the frame, then look for
+ * the <tt>sw $ra,k($sp)</tt> that saved the return address. A scan that
+ * reaches the <tt>jr $ra</tt> ending the previous function instead means
+ * the function has no frame; its return address is only known if it is
+ * the innermost one. Frames are named by the address of their function's
+ * prologue. Samples taken while a process is in the kernel are charged to
+ * the syscall that entered it. The walk only reads pages already in memory,
+ * so sampling never brings in a page the program has not touched.
+ *
+ * <p>
+ * Memory is bounded: a stack is at most <tt>UserKernel.sampleDepth</tt>
+ * frames deep, and once a process has <tt>UserKernel.sampleLimit</tt>
+ * distinct stacks, further new stacks are counted under
+ * <tt>[other]</tt>.
+ */
+public class StackSampler {
+    private StackSampler() {
+    }
+
+    /**
+     * Start sampling. Must be called after the alarm is created, since the
+     * sampler runs before the alarm's handler on each timer interrupt.
+     * Called by <tt>UserKernel.initialize()</tt>.
+     */
+    public static void enable() {
+	if (enabled)
+	    return;
+
+	enabled = true;
+	interval = Config.getInteger("UserKernel.sampleInterval", interval);
+	maxDepth = Config.getInteger("UserKernel.sampleDepth", maxDepth);
+	maxStacks = Config.getInteger("UserKernel.sampleLimit", maxStacks);
+	Lib.assertTrue(interval > 0 && maxDepth > 0 && maxStacks > 0);
+
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() {
+		    if (++numInterrupts % interval == 0)
+			sample();
+		    ThreadedKernel.alarm.timerInterrupt();
+		}
+	    });
+
+	Machine.addStatsReporter(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Walk the stack of the current thread and count it.
+     */
+    private static void sample() {
+	numSamples++;
+
+	UserProcess process = UserKernel.currentProcess();
+	if (process == null || process.coff == null || process.isExiting()) {
+	    numKernelSamples++;
+	    return;
+	}
+
+	Record record = records.get(process);
+	if (record == null) {
+	    record = new Record(KThread.currentThread().getName() + "["
+				+ records.size() + "]", process);
+	    records.put(process, record);
+	}
+
+	record.count(walk(record));
+    }
+
+    /**
+     * Return the folded stack of the current thread, outermost frame
+     * first.
+     */
+    private static String walk(Record record) {
+	Processor processor = Machine.processor();
+	int pc = processor.readRegister(Processor.regPC);
+	int sp = processor.readRegister(Processor.regSP);
+	int ra = processor.readRegister(Processor.regRA);
+
+	ArrayList<String> frames = new ArrayList<String>();
+
+	for (int depth=0; depth<maxDepth && record.inText(pc); depth++) {
+	    // find the prologue, or the end of the previous function
+	    int limit = Math.max(record.textStart, pc - maxScan*4);
+	    int start = (limit == record.textStart) ? limit : pc;
+	    int frameSize = 0;
+	    for (int addr=pc-4; addr>=limit; addr-=4) {
+		int word = record.readWord(addr);
+		if ((word & 0xFFFF0000) == addiuSPSP && (short) word < 0) {
+		    start = addr;
+		    frameSize = -(short) word;
+		    break;
+		}
+		if (word == jrRA && addr < pc-4) {
+		    start = addr+8;
+		    break;
+		}
+	    }
+
+	    frames.add("0x" + Lib.toHexString(start));
+
+	    // find where the return address was saved
+	    int savedRA = -1;
+	    for (int addr=start; addr<pc && frameSize>0; addr+=4) {
+		int word = record.readWord(addr);
+		if ((word & 0xFFFF0000) == swRASP) {
+		    savedRA = sp + (short) word;
+		    break;
+		}
+	    }
+
+	    int caller;
+	    if (savedRA != -1)
+		caller = record.readWord(savedRA);
+	    else if (depth == 0)
+		caller = ra;
+	    else
+		break;
+
+	    if (caller == 0)
+		break;
+
+	    // continue from the call, in the caller
+	    pc = caller - 8;
+	    sp += frameSize;
+	}
+
+	StringBuffer stack = new StringBuffer(record.name);
+	for (int i=frames.size()-1; i>=0; i--)
+	    stack.append(';').append(frames.get(i));
+	return stack.toString();
+    }
+
+    /**
+     * Print the folded stacks of every process.
+     */
+    public static void print() {
+	System.out.println("Sampled stacks (" + numSamples + " samples, "
+			   + numKernelSamples + " outside user processes):");
+
+	for (Record record : records.values()) {
+	    ArrayList<String> stacks =
+		new ArrayList<String>(record.counts.keySet());
+	    Collections.sort(stacks);
+	    for (String stack : stacks)
+		System.out.println(stack + " " + record.counts.get(stack)[0]);
+	}
+    }
+
+    /**
+     * The samples taken from one process.
+     */
+    private static class Record {
+	Record(String name, UserProcess process) {
+	    this.name = name;
+	    this.process = process;
+
+	    textStart = Integer.MAX_VALUE;
+	    textEnd = 0;
+	    for (int s=0; s<process.coff.getNumSections(); s++) {
+		CoffSection section = process.coff.getSection(s);
+		if (!section.isExecutable())
+		    continue;
+
+		int first = section.getFirstVPN() * Processor.pageSize;
+		textStart = Math.min(textStart, first);
+		textEnd = Math.max(textEnd, first +
+				   section.getLength() * Processor.pageSize);
+	    }
+	}
+
+	boolean inText(int pc) {
+	    return pc >= textStart && pc < textEnd && (pc & 3) == 0;
+	}
+
+	/**
+	 * Read a word of the process's memory. Runs in the timer interrupt
+	 * handler, so it must not fault a page in: a page that is not in
+	 * memory reads as 0.
+	 */
+	int readWord(int vaddr) {
+	    return process.peekWord(vaddr);
+	}
+
+	void count(String stack) {
+	    long[] count = counts.get(stack);
+	    if (count == null) {
+		if (counts.size() >= maxStacks)
+		    stack = name + ";[other]";
+
+		count = counts.get(stack);
+		if (count == null) {
+		    count = new long[1];
+		    counts.put(stack, count);
+		}
+	    }
+	    count[0]++;
+	}
+
+	String name;
+	UserProcess process;
+	int textStart, textEnd;
+	HashMap<String, long[]> counts = new HashMap<String, long[]>();
+
+    }
+
+    /** <tt>addiu $sp,$sp,<i>imm</i></tt>, without the immediate. */
+    private static final int addiuSPSP = 0x27BD0000;
+    /** <tt>sw $ra,<i>imm</i>($sp)</tt>, without the immediate. */
+    private static final int swRASP = 0xAFBF0000;
+    /** <tt>jr $ra</tt>. */
+    private static final int jrRA = 0x03E00008;
+
+    /** How far back to look for a function's prologue, in instructions. */
+    private static final int maxScan = 4096;
+
+    private static boolean enabled = false;
+    private static int interval = 1, maxDepth = 32, maxStacks = 1000;
+
+    private static long numInterrupts = 0;
+    private static long numSamples = 0, numKernelSamples = 0;
+
+    private static LinkedHashMap<UserProcess, Record> records =
+	new LinkedHashMap<UserProcess, Record>();
+}
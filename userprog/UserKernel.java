@@ -4,6 +4,13 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -16,13 +23,43 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
+     * Initialize this kernel. Creates a synchronized console, the frame
+     * allocator, the open file table, the image cache and the process table,
+     * registers the allocator and the process table to be saved with
+     * snapshots, starts the stack sampler if it is configured, and sets the
      * processor's exception handler.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+	frames = new FrameAllocator(Machine.processor().getNumPhysPages());
+	files = new OpenFileTable(
+	    Config.getInteger("UserKernel.fileBufferSize", 4096));
+	images = new ImageCache(
+	    Config.getInteger("UserKernel.imageCacheSize", 262144));
+	processLock = new Lock();
+
+	// snapshots must carry which frames are free and who holds the rest
+	Snapshot.addParticipant(frames);
+	Snapshot.addParticipant(new ProcessSnapshot());
+
+	Machine.addStatsReporter(new Runnable() {
+		public void run() {
+		    printProcesses();
+		    images.print();
+		}
+	    });
+
+	if (Config.getBoolean("UserKernel.sampleStacks", false))
+	    StackSampler.enable();
+
+	if (Machine.processor().hasCaches()) {
+	    cacheCounts = new LinkedHashMap<String, long[]>();
+	    Machine.addStatsReporter(new Runnable() {
+		    public void run() { printCaches(); }
+		});
+	}
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -30,11 +67,14 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Test the console device.
+     * Test the frame allocator and the console device.
      */	
     public void selfTest() {
 	super.selfTest();
 
+	FrameAllocator.selfTest();
+	OpenFileTable.selfTest();
+
 	System.out.println("Testing the console device. Typed characters");
 	System.out.println("will be echoed until q is typed.");
 
@@ -61,6 +101,153 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Give a process the next process ID, and add it to the process table.
+     * The caller must hold <tt>processLock</tt>.
+     *
+     * @param	process	the process, which is about to start running.
+     * @return	the process ID.
+     */
+    static int addProcess(UserProcess process) {
+	Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+	int pid = nextPID++;
+	processes.put(pid, process);
+	numRunning++;
+	numStarted++;
+
+	return pid;
+    }
+
+    /**
+     * Return the process with the specified process ID. The caller must hold
+     * <tt>processLock</tt>.
+     *
+     * @param	pid	the process ID.
+     * @return	the process, or <tt>null</tt> if there is none. A process
+     *		that has exited stays in the table until its parent joins it,
+     *		or until it has no parent.
+     */
+    static UserProcess getProcess(int pid) {
+	Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+	return processes.get(pid);
+    }
+
+    /**
+     * Remove an exited process from the process table. The caller must hold
+     * <tt>processLock</tt>.
+     *
+     * @param	pid	the process ID.
+     */
+    static void removeProcess(int pid) {
+	Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+	Lib.assertTrue(processes.remove(pid) != null);
+    }
+
+    /**
+     * Note that a process has exited. The caller must hold
+     * <tt>processLock</tt>.
+     *
+     * @return	<tt>true</tt> if no process is running any more.
+     */
+    static boolean processExited() {
+	Lib.assertTrue(processLock.isHeldByCurrentThread());
+
+	Lib.assertTrue(numRunning > 0);
+	return --numRunning == 0;
+    }
+
+    /**
+     * Print how many processes were run, and how long each took on average,
+     * if any process was started by <tt>exec()</tt>.
+     */
+    private static void printProcesses() {
+	if (numStarted < 2)
+	    return;
+
+	long ticks = Machine.timer().getTime();
+	System.out.println("Processes: " + numStarted + " run, "
+			   + ticks/numStarted + " ticks each, "
+			   + (long) numStarted*1000000/ticks
+			   + " per million ticks");
+    }
+
+    /**
+     * Saves the process table with snapshots. Only a snapshot of a single
+     * process can be restored, into the process the restored machine is
+     * running; it must not have open files or children. Snapshots are taken
+     * and restored between two user instructions, when no other thread can
+     * be changing the table, so <tt>processLock</tt> is not needed.
+     */
+    private static class ProcessSnapshot implements Snapshot.Participant {
+	public String getName() {
+	    return "UserKernel.processes";
+	}
+
+	public void save(DataOutput out) throws IOException {
+	    out.writeInt(nextPID);
+	    out.writeInt(numRunning);
+	    out.writeInt(numStarted);
+
+	    out.writeInt(processes.size());
+	    for (UserProcess process : processes.values())
+		process.saveSnapshot(out);
+	}
+
+	public void restore(DataInput in) throws IOException {
+	    int savedNextPID = in.readInt();
+	    int savedNumRunning = in.readInt();
+	    int savedNumStarted = in.readInt();
+
+	    Lib.assertTrue(in.readInt() == 1 && processes.size() == 1,
+			   "snapshot has several processes, "
+			   + "which cannot be restored");
+	    processes.values().iterator().next().restoreSnapshot(in);
+
+	    nextPID = savedNextPID;
+	    numRunning = savedNumRunning;
+	    numStarted = savedNumStarted;
+	}
+    }
+
+    /**
+     * Add cache accesses and misses made by a process to the totals kept
+     * for its program. Called by <tt>UserProcess.chargeCaches()</tt>.
+     *
+     * @param	program	the name of the program the process is running.
+     * @param	counts	the change in the processor's cache counters.
+     */
+    static void chargeCaches(String program, long[] counts) {
+	long[] total = cacheCounts.get(program);
+	if (total == null) {
+	    total = new long[counts.length];
+	    cacheCounts.put(program, total);
+	}
+
+	for (int i=0; i<counts.length; i++)
+	    total[i] += counts[i];
+    }
+
+    /**
+     * Print the cache accesses and misses of each program.
+     */
+    private static void printCaches() {
+	UserProcess current = currentProcess();
+	if (current != null)
+	    current.chargeCaches();
+
+	System.out.println("Caches by program (accesses/misses):");
+	for (Map.Entry<String, long[]> entry : cacheCounts.entrySet()) {
+	    long[] c = entry.getValue();
+	    System.out.println("  " + entry.getKey()
+			       + ": L1-I " + c[0] + "/" + c[1]
+			       + ", L1-D " + c[2] + "/" + c[3]
+			       + ", L2 " + c[4] + "/" + c[5]);
+	}
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -104,12 +291,40 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	files.flush();
 	super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the physical frame allocator. */
+    public static FrameAllocator frames;
+
+    /** Globally accessible reference to the table of open files. */
+    public static OpenFileTable files;
+
+    /** Globally accessible reference to the executable image cache. */
+    public static ImageCache images;
+
+    /**
+     * Guards the process table, and the links between parent and child
+     * processes.
+     */
+    static Lock processLock;
+
+    /** The process ID of the first process, which runs the shell. */
+    public static final int rootPID = 1;
+
+    /** Every process that is running, or has exited but can still be joined. */
+    private static HashMap<Integer, UserProcess> processes =
+	new HashMap<Integer, UserProcess>();
+    private static int nextPID = rootPID;
+    private static int numRunning = 0, numStarted = 0;
+
+    /** Cache counts per program, if the processor models caches. */
+    private static LinkedHashMap<String, long[]> cacheCounts = null;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
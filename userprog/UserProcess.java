@@ -4,7 +4,14 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -20,13 +27,11 @@ import java.io.EOFException;
  */
 public class UserProcess {
     /**
-     * Allocate a new process.
+     * Allocate a new process, with descriptors 0 and 1 open on the console.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	fileTable[0] = UserKernel.console.openForReading();
+	fileTable[1] = UserKernel.console.openForWriting();
     }
     
     /**
@@ -34,10 +39,27 @@ public class UserProcess {
      * is specified by the <tt>nachos.conf</tt> key
      * <tt>Kernel.processClassName</tt>.
      *
+     * <p>
+     * The class's constructor is looked up once, and called through a method
+     * handle. Calling it by reflection every time would make the JVM
+     * generate an accessor class after a few calls, which needs a class
+     * loader, and creating class loaders is forbidden.
+     *
      * @return	a new process of the correct class.
      */
     public static UserProcess newUserProcess() {
-	return (UserProcess)Lib.constructObject(Machine.getProcessClassName());
+	try {
+	    if (processConstructor == null) {
+		processConstructor = MethodHandles.publicLookup().findConstructor(
+		    Lib.loadClass(Machine.getProcessClassName()),
+		    MethodType.methodType(void.class));
+	    }
+	    return (UserProcess) processConstructor.invoke();
+	}
+	catch (Throwable e) {
+	    Machine.terminate(e);
+	    return null;
+	}
     }
 
     /**
@@ -51,6 +73,12 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
 	if (!load(name, args))
 	    return false;
+
+	UserKernel.processLock.acquire();
+	pid = UserKernel.addProcess(this);
+	if (parent != null)
+	    parent.children.put(pid, this);
+	UserKernel.processLock.release();
 	
 	new UThread(this).setName(name).fork();
 
@@ -62,6 +90,7 @@ public class UserProcess {
      * Called by <tt>UThread.saveState()</tt>.
      */
     public void saveState() {
+	chargeCaches();
     }
 
     /**
@@ -70,6 +99,26 @@ public class UserProcess {
      */
     public void restoreState() {
 	Machine.processor().setPageTable(pageTable);
+
+	if (Machine.processor().hasCaches())
+	    cacheBaseline = Machine.processor().readCacheCounters();
+    }
+
+    /**
+     * Charge the cache accesses and misses counted since this process last
+     * got the processor to its program, if the cache model is on. Called
+     * when the process gives up the processor, and when the machine halts.
+     */
+    public void chargeCaches() {
+	if (cacheBaseline == null)
+	    return;
+
+	long[] now = Machine.processor().readCacheCounters();
+	for (int i=0; i<now.length; i++)
+	    now[i] -= cacheBaseline[i];
+	cacheBaseline = null;
+
+	UserKernel.chargeCaches(programName, now);
     }
 
     /**
@@ -79,6 +128,10 @@ public class UserProcess {
      * without including the null terminator. If no null terminator is found,
      * returns <tt>null</tt>.
      *
+     * <p>
+     * The terminator is searched for in place, a page at a time, so only as
+     * many bytes are copied as the string has.
+     *
      * @param	vaddr	the starting virtual address of the null-terminated
      *			string.
      * @param	maxLength	the maximum number of characters in the string,
@@ -89,13 +142,22 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	for (int length=0; length<=maxLength; ) {
+	    long paddr = translateForKernel(vaddr+length, false);
+	    if (paddr == -1)
+		return null;
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
-		return new String(bytes, 0, length);
+	    int count = Math.min(maxLength+1-length,
+				 pageSize-Processor.offsetFromAddress(vaddr+length));
+	    for (int i=0; i<count; i++, length++) {
+		if (memory.readByte(paddr+i) == 0) {
+		    byte[] bytes = new byte[length];
+		    readVirtualMemory(vaddr, bytes);
+		    return new String(bytes);
+		}
+	    }
 	}
 
 	return null;
@@ -131,14 +193,21 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+
+	// copy a page at a time, up to the first page that cannot be loaded
+	// or is read-only
+	int amount = 0;
+	while (amount < length) {
+	    long paddr = translateForKernel(vaddr+amount, false);
+	    if (paddr == -1)
+		break;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	    int count = Math.min(length-amount,
+				 pageSize-Processor.offsetFromAddress(vaddr+amount));
+	    memory.read(paddr, data, offset+amount, count);
+	    amount += count;
+	}
 
 	return amount;
     }
@@ -174,23 +243,171 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+
+	// copy a page at a time, up to the first page that cannot be loaded
+	// or is read-only
+	int amount = 0;
+	while (amount < length) {
+	    long paddr = translateForKernel(vaddr+amount, true);
+	    if (paddr == -1)
+		break;
+
+	    int count = Math.min(length-amount,
+				 pageSize-Processor.offsetFromAddress(vaddr+amount));
+	    memory.write(paddr, data, offset+amount, count);
+	    amount += count;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write data from this process's virtual memory to a file, starting at
+     * the file's current position. Each page is passed to the file in one
+     * call, straight out of physical memory when memory is a Java array, so
+     * no intermediate buffer is needed. Stops early if the file takes fewer
+     * bytes than it was given, or at the first page that cannot be loaded.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	file	the file to write to.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes written, or -1 if the file failed before
+     *		any were.
+     */
+    public int readVirtualMemoryToFile(int vaddr, OpenFile file, int length) {
+	Lib.assertTrue(length >= 0);
+
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+	byte[] array = memory.array();
+
+	int amount = 0;
+	while (amount < length) {
+	    long paddr = translateForKernel(vaddr+amount, false);
+	    if (paddr == -1)
+		break;
+
+	    int count = Math.min(length-amount,
+				 pageSize-Processor.offsetFromAddress(vaddr+amount));
+
+	    int written;
+	    if (array != null) {
+		written = file.write(array, (int) paddr, count);
+	    }
+	    else {
+		memory.read(paddr, pageBuffer(), 0, count);
+		written = file.write(pageBuffer, 0, count);
+	    }
+
+	    if (written == -1)
+		return (amount > 0) ? amount : -1;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	    amount += written;
+	    if (written < count)
+		break;
+	}
 
 	return amount;
     }
 
+    /**
+     * Read data from a file into this process's virtual memory, starting at
+     * the file's current position. Each page is filled by one call to the
+     * file, straight into physical memory when memory is a Java array. Stops
+     * early at the end of the file (or when a console has no more bytes
+     * ready), or at the first page that cannot be loaded or is read-only.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	file	the file to read from.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes read, or -1 if the file failed, or the
+     *		first page could not be written, before any were.
+     */
+    public int writeVirtualMemoryFromFile(int vaddr, OpenFile file,
+					  int length) {
+	Lib.assertTrue(length >= 0);
+
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+	byte[] array = memory.array();
+
+	int amount = 0;
+	while (amount < length) {
+	    // a buffer that cannot take a single byte is an error, not EOF
+	    long paddr = translateForKernel(vaddr+amount, true);
+	    if (paddr == -1)
+		return (amount > 0) ? amount : -1;
+
+	    int count = Math.min(length-amount,
+				 pageSize-Processor.offsetFromAddress(vaddr+amount));
+
+	    int read;
+	    if (array != null) {
+		read = file.read(array, (int) paddr, count);
+	    }
+	    else {
+		read = file.read(pageBuffer(), 0, count);
+		if (read > 0)
+		    memory.write(paddr, pageBuffer, 0, read);
+	    }
+
+	    if (read == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += read;
+	    if (read < count)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Return the physical address of a byte of this process's virtual
+     * memory, for a copy made by the kernel. The page is loaded if it has
+     * not been touched yet, and marked used, and dirty if <i>writing</i>.
+     * The kernel may not write a read-only page on the process's behalf,
+     * any more than the process itself may.
+     *
+     * @param	vaddr	the virtual address.
+     * @param	writing	<tt>true</tt> if the kernel will write the byte.
+     * @return	the physical address, or -1 if <i>vaddr</i> is not part of
+     *		this process, its page cannot be loaded, or <i>writing</i> is
+     *		<tt>true</tt> and the page is read-only.
+     */
+    private long translateForKernel(int vaddr, boolean writing) {
+	if (vaddr < 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (!loadPage(vpn))
+	    return -1;
+
+	if (writing && (pageTable.get(vpn) & PageTable.readOnlyBit) != 0)
+	    return -1;
+
+	pageTable.setFlags(vpn, writing ?
+			   PageTable.usedBit | PageTable.dirtyBit :
+			   PageTable.usedBit);
+
+	return (long) pageTable.getPPN(vpn)*pageSize +
+	    Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Return the buffer used to stage transfers between files and physical
+     * memory that is not a Java array.
+     */
+    private byte[] pageBuffer() {
+	if (pageBuffer == null)
+	    pageBuffer = new byte[pageSize];
+	return pageBuffer;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
-     * prepare to pass it the specified arguments. Opens the executable, reads
-     * its header information, and copies sections and arguments into this
-     * process's virtual memory.
+     * prepare to pass it the specified arguments. Opens the executable
+     * through the kernel's image cache, reads its header information, and
+     * copies sections and arguments into this process's virtual memory.
      *
      * @param	name	the name of the file containing the executable.
      * @param	args	the arguments to pass to the executable.
@@ -198,22 +415,21 @@ public class UserProcess {
      */
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
+	programName = name;
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
-	}
-
 	try {
-	    coff = new Coff(executable);
+	    coff = UserKernel.images.open(name);
 	}
 	catch (EOFException e) {
-	    executable.close();
 	    Lib.debug(dbgProcess, "\tcoff load failed");
 	    return false;
 	}
 
+	if (coff == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return false;
+	}
+
 	// make sure the sections are contiguous and start at page 0
 	numPages = 0;
 	for (int s=0; s<coff.getNumSections(); s++) {
@@ -260,25 +476,35 @@ public class UserProcess {
 	this.argc = args.length;
 	this.argv = entryOffset;
 	
+	// the argument page is loaded now, and memory may already be full
 	for (int i=0; i<argv.length; i++) {
 	    byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-	    Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
+	    if (writeVirtualMemory(entryOffset,stringOffsetBytes) != 4 ||
+		writeVirtualMemory(stringOffset, argv[i]) != argv[i].length ||
+		writeVirtualMemory(stringOffset+argv[i].length,
+				   new byte[] { 0 }) != 1) {
+		unloadSections();
+		Lib.debug(dbgProcess, "	no free frame for arguments");
+		return false;
+	    }
 	    entryOffset += 4;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-		       argv[i].length);
-	    stringOffset += argv[i].length;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-	    stringOffset += 1;
+	    stringOffset += argv[i].length + 1;
 	}
 
 	return true;
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
+     * Allocates memory for this process, and prepares the COFF sections to be
+     * loaded. If this returns successfully, the process will definitely be
      * run (this is the last step in process initialization that can fail).
      *
+     * <p>
+     * Nothing is read yet, and no memory is allocated: every page starts out
+     * invalid, and is given a frame and brought in by <tt>loadPage()</tt> the
+     * first time it is touched. Memory is overcommitted this way: a process
+     * that faults when no frame is free is killed with status -1.
+     *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
@@ -288,30 +514,194 @@ public class UserProcess {
 	    return false;
 	}
 
-	// load sections
+	pageTable = new PageTable(numPages);
+
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-		      + " section (" + section.getLength() + " pages)");
+		      + " section (" + section.getLength()
+		      + " pages, loaded on demand)");
+	}
+	
+	return true;
+    }
+
+    /**
+     * Bring in a page of this process the first time it is touched. The
+     * page is given a free frame, and then a page of a COFF section is read
+     * from the executable (or zero-filled, for an uninitialized section);
+     * any other page, in the stack or the argument page, is zero-filled.
+     *
+     * <p>
+     * Reading the executable may block, so loads are serialized: a thread
+     * that touches a page while another thread is loading it waits, and then
+     * finds it valid.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page is now valid, or <tt>false</tt> if
+     *		it is not part of this process or no frame is free.
+     */
+    protected boolean loadPage(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	if (pageTable.isValid(vpn))
+	    return true;
 
-	    for (int i=0; i<section.getLength(); i++) {
-		int vpn = section.getFirstVPN()+i;
+	pageLock.acquire();
+	boolean loaded = pageTable.isValid(vpn) || fillPage(vpn);
+	pageLock.release();
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+	return loaded;
+    }
+
+    /**
+     * Give an invalid page a frame and its contents. The caller must hold
+     * <tt>pageLock</tt>.
+     */
+    private boolean fillPage(int vpn) {
+	int ppn = UserKernel.frames.allocate();
+	if (ppn == -1) {
+	    Lib.debug(dbgProcess, "\tno free frame for page " + vpn);
+	    return false;
+	}
+	numResidentPages++;
+
+	CoffSection section = null;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection candidate = coff.getSection(s);
+	    if (vpn >= candidate.getFirstVPN() &&
+		vpn < candidate.getFirstVPN() + candidate.getLength()) {
+		section = candidate;
+		break;
 	    }
 	}
-	
+
+	if (section != null) {
+	    Lib.debug(dbgProcess, "\tloading page " + vpn + " of "
+		      + section.getName());
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgProcess, "\tzero-filling page " + vpn);
+	    Machine.processor().getPhysicalMemory().write(
+		(long) ppn*pageSize, zeroPage, 0, pageSize);
+	}
+
+	boolean readOnly = (section != null && section.isReadOnly());
+	pageTable.set(vpn, PageTable.makeEntry(ppn, PageTable.validBit |
+					       (readOnly ? PageTable.readOnlyBit
+						: 0)));
 	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>: return the
+     * frames of every loaded page to the kernel, and close the executable.
      */
     protected void unloadSections() {
+	int[] frames = new int[numResidentPages];
+	int count = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable.isValid(vpn)) {
+		frames[count++] = pageTable.getPPN(vpn);
+		pageTable.set(vpn, 0);
+	    }
+	}
+	Lib.assertTrue(count == numResidentPages);
+
+	UserKernel.frames.free(frames, count);
+	numResidentPages = 0;
+
+	coff.close();
     }    
 
+    /**
+     * Return the number of pages of this process that are in memory.
+     *
+     * @return	the number of frames this process holds.
+     */
+    public int getNumResidentPages() {
+	return numResidentPages;
+    }
+
+    /**
+     * Read a word of this process's virtual memory without faulting it in.
+     * Takes no locks and allocates nothing, so it may be called from an
+     * interrupt handler, as the stack sampler does.
+     *
+     * @param	vaddr	the virtual address, a multiple of 4.
+     * @return	the word, or 0 if <i>vaddr</i> is not aligned or its page is
+     *		not in memory.
+     */
+    int peekWord(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || (vaddr & 3) != 0 || vpn >= numPages ||
+	    exiting || !pageTable.isValid(vpn))
+	    return 0;
+
+	return Machine.processor().getPhysicalMemory().readInt(
+	    (long) pageTable.getPPN(vpn)*pageSize +
+	    Processor.offsetFromAddress(vaddr));
+    }
+
+    /**
+     * Test whether this process has started to exit. Its memory and its
+     * executable may already be gone.
+     *
+     * @return	<tt>true</tt> once <tt>exit()</tt> has been called.
+     */
+    boolean isExiting() {
+	return exiting;
+    }
+
+    /**
+     * Write what a snapshot must carry of this process: its page table,
+     * which says which frames it holds. Open files and children cannot be
+     * carried, so only how many there are is written.
+     *
+     * @param	out	the stream to write to.
+     */
+    void saveSnapshot(DataOutput out) throws IOException {
+	out.writeInt(pid);
+	out.writeInt(numPages);
+	for (int vpn=0; vpn<numPages; vpn++)
+	    out.writeInt(pageTable.get(vpn));
+
+	int numFiles = 0;
+	for (int fd=2; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] != null)
+		numFiles++;
+	}
+	out.writeInt(numFiles);
+	out.writeInt(children.size());
+    }
+
+    /**
+     * Replace this process's page table with one saved in a snapshot by
+     * <tt>saveSnapshot()</tt>, and count its resident pages again. The
+     * process must be running the same program as the one saved.
+     *
+     * @param	in	the stream to read from.
+     */
+    void restoreSnapshot(DataInput in) throws IOException {
+	Lib.assertTrue(in.readInt() == pid && in.readInt() == numPages,
+		       "snapshot is of a different program");
+
+	numResidentPages = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable.set(vpn, in.readInt());
+	    if (pageTable.isValid(vpn))
+		numResidentPages++;
+	}
+
+	Lib.assertTrue(in.readInt() == 0,
+		       "snapshot has open files, which cannot be restored");
+	Lib.assertTrue(in.readInt() == 0,
+		       "snapshot has child processes, which cannot be restored");
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -336,16 +726,251 @@ public class UserProcess {
     }
 
     /**
-     * Handle the halt() system call. 
+     * Return this process's process ID.
+     *
+     * @return	the process ID, or 0 if the process has not started.
+     */
+    public int getPID() {
+	return pid;
+    }
+
+    /**
+     * Handle the halt() system call. Only the first process may halt the
+     * machine.
      */
     private int handleHalt() {
+	if (pid != UserKernel.rootPID)
+	    return -1;
 
+	UserKernel.files.flush();
 	Machine.halt();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	return 0;
     }
 
+    /**
+     * Handle the exit() system call. 
+     */
+    private int handleExit(int status) {
+	exit(status, true);
+
+	Lib.assertNotReached("exit() returned");
+	return 0;
+    }
+
+    /**
+     * Terminate this process. Its files are closed and its frames freed
+     * first, so they can be used by other processes at once, and then its
+     * status is handed to its parent, which may be waiting in
+     * <tt>join()</tt>. Its children no longer have a parent. If it was the
+     * last process running, the machine halts. Must be called by the
+     * process's own thread; never returns.
+     *
+     * @param	status	the exit status.
+     * @param	normal	<tt>false</tt> if the process is being terminated
+     *			because of an unhandled exception.
+     */
+    protected void exit(int status, boolean normal) {
+	Lib.debug(dbgProcess, "UserProcess.exit(" + status + ") by process "
+		  + pid + (normal ? "" : " (abnormal)"));
+
+	exiting = true;
+
+	closeFiles();
+	unloadSections();
+
+	UserKernel.processLock.acquire();
+
+	// children that have exited can no longer be joined by anyone
+	for (UserProcess child : children.values()) {
+	    child.parent = null;
+	    if (child.exited)
+		UserKernel.removeProcess(child.pid);
+	}
+	children.clear();
+
+	exitStatus = status;
+	exitedNormally = normal;
+	exited = true;
+	if (parent == null)
+	    UserKernel.removeProcess(pid);
+
+	boolean last = UserKernel.processExited();
+
+	UserKernel.processLock.release();
+
+	exitSemaphore.V();
+
+	if (last)
+	    Kernel.kernel.terminate();
+
+	KThread.finish();
+    }
+
+    /**
+     * Close every descriptor this process has open.
+     */
+    protected void closeFiles() {
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    if (fileTable[fd] != null) {
+		fileTable[fd].close();
+		fileTable[fd] = null;
+	    }
+	}
+    }
+
+    /**
+     * Handle the exec() system call. 
+     */
+    private int handleExec(int nameAddr, int argc, int argvAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null || !name.endsWith(".coff") ||
+	    argc < 0 || argc > pageSize/4)
+	    return -1;
+
+	byte[] pointers = new byte[argc*4];
+	if (readVirtualMemory(argvAddr, pointers) != pointers.length)
+	    return -1;
+
+	String[] args = new String[argc];
+	for (int i=0; i<argc; i++) {
+	    args[i] = readVirtualMemoryString(Lib.bytesToInt(pointers, i*4),
+					      maxNameLength);
+	    if (args[i] == null)
+		return -1;
+	}
+
+	UserProcess child = newUserProcess();
+	child.parent = this;
+	if (!child.execute(name, args)) {
+	    child.closeFiles();
+	    return -1;
+	}
+
+	return child.pid;
+    }
+
+    /**
+     * Handle the join() system call. 
+     */
+    private int handleJoin(int pid, int statusAddr) {
+	if (!validRange(statusAddr, 4))
+	    return -1;
+
+	UserKernel.processLock.acquire();
+
+	UserProcess child = UserKernel.getProcess(pid);
+	if (child == null || child.parent != this) {
+	    UserKernel.processLock.release();
+	    return -1;
+	}
+
+	// disown the child, so it cannot be joined again
+	child.parent = null;
+	children.remove(pid);
+	if (child.exited)
+	    UserKernel.removeProcess(pid);
+
+	UserKernel.processLock.release();
+
+	child.exitSemaphore.P();
+
+	if (!child.exitedNormally)
+	    return 0;
+
+	writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+	return 1;
+    }
+
+    /**
+     * Handle the creat() and open() system calls. 
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	int fd = 0;
+	while (fd < maxOpenFiles && fileTable[fd] != null)
+	    fd++;
+	if (fd == maxOpenFiles)
+	    return -1;
+
+	OpenFile file = UserKernel.files.open(name, create);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = file;
+	return fd;
+    }
+
+    /**
+     * Handle the read() system call. 
+     */
+    private int handleRead(int fd, int bufferAddr, int count) {
+	OpenFile file = getFile(fd);
+	if (file == null || !validRange(bufferAddr, count))
+	    return -1;
+
+	return writeVirtualMemoryFromFile(bufferAddr, file, count);
+    }
+
+    /**
+     * Handle the write() system call. 
+     */
+    private int handleWrite(int fd, int bufferAddr, int count) {
+	OpenFile file = getFile(fd);
+	if (file == null || !validRange(bufferAddr, count))
+	    return -1;
+
+	return readVirtualMemoryToFile(bufferAddr, file, count);
+    }
+
+    /**
+     * Handle the close() system call. 
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getFile(fd);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = null;
+	file.close();
+	return 0;
+    }
+
+    /**
+     * Handle the unlink() system call. 
+     */
+    private int handleUnlink(int nameAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	return UserKernel.files.unlink(name) ? 0 : -1;
+    }
+
+    /**
+     * Return the file open on a descriptor, or <tt>null</tt> if the
+     * descriptor is not open.
+     */
+    private OpenFile getFile(int fd) {
+	if (fd < 0 || fd >= maxOpenFiles)
+	    return null;
+
+	return fileTable[fd];
+    }
+
+    /**
+     * Test whether <i>count</i> bytes starting at <i>vaddr</i> all lie in
+     * this process's address space.
+     */
+    private boolean validRange(int vaddr, int count) {
+	return count >= 0 && vaddr >= 0 &&
+	    (long) vaddr + count <= (long) numPages*pageSize;
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -391,7 +1016,24 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallExit:
+	    return handleExit(a0);
+	case syscallExec:
+	    return handleExec(a0, a1, a2);
+	case syscallJoin:
+	    return handleJoin(a0, a1);
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleRead(a0, a1, a2);
+	case syscallWrite:
+	    return handleWrite(a0, a1, a2);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -413,20 +1055,39 @@ public class UserProcess {
 
 	switch (cause) {
 	case Processor.exceptionSyscall:
-	    int result = handleSyscall(processor.readRegister(Processor.regV0),
-				       processor.readRegister(Processor.regA0),
-				       processor.readRegister(Processor.regA1),
-				       processor.readRegister(Processor.regA2),
-				       processor.readRegister(Processor.regA3)
-				       );
+	    TrapFrame frame = processor.getTrapFrame();
+	    int result = handleSyscall(frame.v0, frame.a0, frame.a1,
+				       frame.a2, frame.a3);
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionPageFault:
+	    // the faulting instruction runs again once its page is loaded
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (loadPage(vpn))
+		break;
+
+	    // frames are only given out as pages are touched, so a page of
+	    // the process can find memory full; the process cannot go on
+	    if (vpn >= 0 && vpn < numPages) {
+		System.out.println("Process " + pid + " (" + programName
+				   + ") killed: no free frame for page "
+				   + vpn);
+	    }
+	    else {
+		// a fault outside the process is fatal too
+		Lib.debug(dbgProcess, "Page fault outside the process at page "
+			  + vpn);
+	    }
+	    exit(-1, false);
+	    break;
 				       
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    exit(-1, false);
 	}
     }
 
@@ -434,16 +1095,56 @@ public class UserProcess {
     protected Coff coff;
 
     /** This process's page table. */
-    protected TranslationEntry[] pageTable;
+    protected PageTable pageTable;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
+    /** The number of pages given a frame by <tt>loadPage()</tt>. */
+    protected int numResidentPages = 0;
+    /** Held while a page is being loaded. */
+    private Lock pageLock = new Lock();
+    /** Stages file transfers when memory has no array. */
+    private byte[] pageBuffer = null;
+
+    /** The files this process has open, indexed by descriptor. */
+    protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+
+    /** The number of descriptors a process can have open at once. */
+    protected static final int maxOpenFiles = 16;
+    /** The longest file name a system call accepts. */
+    private static final int maxNameLength = 256;
+
+    /** This process's process ID. */
+    private int pid = 0;
+    /** The process that started this one, until it joins or exits. */
+    private UserProcess parent = null;
+    /** The children this process has not joined, by process ID. */
+    private HashMap<Integer, UserProcess> children =
+	new HashMap<Integer, UserProcess>();
+
+    private boolean exited = false, exitedNormally;
+    /** Set as soon as <tt>exit()</tt> starts tearing this process down. */
+    private boolean exiting = false;
+    private int exitStatus;
+    /** Released once, when this process exits. */
+    private Semaphore exitSemaphore = new Semaphore(0);
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
     private int initialPC, initialSP;
     private int argc, argv;
+
+    /** The name of the program being run by this process. */
+    private String programName;
+    /** The cache counters when this process last got the processor. */
+    private long[] cacheBaseline = null;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
+
+    /** The constructor of the process class, once it is looked up. */
+    private static MethodHandle processConstructor = null;
+
+    /** A page of zeros, copied into pages that have no contents. */
+    private static final byte[] zeroPage = new byte[pageSize];
 }